@@ -17,40 +17,31 @@ import android.text.format.Formatter;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.android.sdklib.build.ApkBuilder;
-import com.android.sdklib.build.ApkCreationException;
-import com.android.sdklib.build.DuplicateFileException;
-import com.android.sdklib.build.SealedApkException;
-import com.github.megatronking.stringfog.plugin.StringFogClassInjector;
-import com.github.megatronking.stringfog.plugin.StringFogMappingPrinter;
-import com.iyxan23.zipalignjava.InvalidZipException;
-import com.iyxan23.zipalignjava.ZipAlign;
-
 import org.xml.sax.SAXException;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.io.RandomAccessFile;
 import java.lang.reflect.Method;
 import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.stream.Collectors;
 
 import mod.agus.jcoderz.dex.Dex;
-import mod.agus.jcoderz.dex.FieldId;
-import mod.agus.jcoderz.dex.MethodId;
-import mod.agus.jcoderz.dex.ProtoId;
 import mod.agus.jcoderz.dx.command.dexer.DxContext;
 import mod.agus.jcoderz.dx.command.dexer.Main;
 import mod.agus.jcoderz.dx.merge.CollisionPolicy;
@@ -62,18 +53,25 @@ import mod.hey.studios.compiler.kotlin.KotlinCompilerBridge;
 import mod.hey.studios.project.ProjectSettings;
 import mod.hey.studios.project.proguard.ProguardHandler;
 import mod.hey.studios.util.SystemLogPrinter;
+import mod.jbk.build.BuildConfigurationSnapshot;
 import mod.jbk.build.BuildProgressReceiver;
 import mod.jbk.build.BuiltInLibraries;
+import mod.jbk.build.CompileAssetExtractor;
+import mod.jbk.build.ShrinkerResultCache;
+import mod.jbk.build.apk.ApkPackager;
 import mod.jbk.build.compiler.dex.DexCompiler;
+import mod.jbk.build.compiler.dex.DexMergePlanner;
+import mod.jbk.build.compiler.java.IncrementalJavaCompilation;
 import mod.jbk.build.compiler.resource.ResourceCompiler;
+import mod.jbk.build.compiler.stringfog.IncrementalStringFog;
 import mod.jbk.util.LogUtil;
 import mod.jbk.util.TestkeySignBridge;
-import mod.pranav.build.JarBuilder;
 import mod.pranav.build.R8Compiler;
 import mod.pranav.viewbinding.ViewBindingBuilder;
 import pro.sketchware.SketchApplication;
 import pro.sketchware.utility.FilePathUtil;
 import pro.sketchware.utility.FileUtil;
+import pro.sketchware.utility.HashUtil;
 import pro.sketchware.utility.SketchwareUtil;
 import proguard.Configuration;
 import proguard.ConfigurationParser;
@@ -94,8 +92,10 @@ public class ProjectBuilder {
     public String androidJarPath;
     public ProguardHandler proguard;
     public ProjectSettings settings;
+    private final BuildConfigurationSnapshot configuration;
     private boolean buildAppBundle = false;
     private ArrayList<File> dexesToAddButNotMerge = new ArrayList<>();
+    private List<File> libraryDexes;
 
     /**
      * Timestamp keeping track of when compiling the project's resources started, needed for stats of how long compiling took.
@@ -103,6 +103,13 @@ public class ProjectBuilder {
     private long timestampResourceCompilationStarted;
 
     public ProjectBuilder(Context context, yq yqVar) {
+        this(context, yqVar, new BuildConfigurationSnapshot(yqVar.sc_id));
+    }
+
+    /**
+     * @param configuration The configuration all of the build's stages use, so that it's read only once per build
+     */
+    public ProjectBuilder(Context context, yq yqVar, BuildConfigurationSnapshot configuration) {
         /* Detect some bad behaviour of the app */
         StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
                 .detectAll()
@@ -126,16 +133,17 @@ public class ProjectBuilder {
         }
 
         aapt2Binary = new File(context.getCacheDir(), "aapt2");
-        build_settings = new BuildSettings(yqVar.sc_id);
+        this.configuration = configuration;
+        build_settings = configuration.getBuildSettings();
         this.context = context;
         yq = yqVar;
         fpu = new FilePathUtil();
-        mll = new ManageLocalLibrary(yqVar.sc_id);
+        mll = configuration.getLocalLibraries();
         builtInLibraryManager = new BuiltInLibraryManager(yqVar.sc_id);
         File defaultAndroidJar = new File(BuiltInLibraries.EXTRACTED_COMPILE_ASSETS_PATH, "android.jar");
         androidJarPath = build_settings.getValue(BuildSettings.SETTING_ANDROID_JAR_PATH, defaultAndroidJar.getAbsolutePath());
-        proguard = new ProguardHandler(yqVar.sc_id);
-        settings = new ProjectSettings(yqVar.sc_id);
+        proguard = configuration.getProguard();
+        settings = configuration.getProjectSettings();
     }
 
     public ProjectBuilder(BuildProgressReceiver buildAsyncTask, Context context, yq yqVar) {
@@ -143,6 +151,11 @@ public class ProjectBuilder {
         progressReceiver = buildAsyncTask;
     }
 
+    public ProjectBuilder(BuildProgressReceiver buildAsyncTask, Context context, yq yqVar, BuildConfigurationSnapshot configuration) {
+        this(context, yqVar, configuration);
+        progressReceiver = buildAsyncTask;
+    }
+
     /**
      * Compile resources and log time needed.
      *
@@ -180,13 +193,22 @@ public class ProjectBuilder {
      * Checks if a file on local storage differs from a file in assets, and if so,
      * replaces the file on local storage with the one in assets.
      * <p/>
-     * The files' sizes are compared, not content.
+     * Files listed in the asset manifest are compared by content hash (see {@link CompileAssetExtractor}),
+     * other files only by size.
      *
      * @param fileInAssets The file in assets relative to assets/ in the APK
      * @param targetFile   The file on local storage
      * @return If the file in assets has been extracted
      */
     public static boolean hasFileChanged(String fileInAssets, String targetFile) {
+        if (CompileAssetExtractor.isInManifest(fileInAssets)) {
+            try {
+                return CompileAssetExtractor.copyIfChanged(fileInAssets, new File(targetFile));
+            } catch (IOException e) {
+                throw new RuntimeException("Couldn't extract " + fileInAssets, e);
+            }
+        }
+
         long length;
         File compareToFile = new File(targetFile);
         oB fileUtil = new oB();
@@ -214,6 +236,28 @@ public class ProjectBuilder {
         ).equals(BuildSettings.SETTING_DEXER_D8);
     }
 
+    public boolean isIncrementalBuildEnabled() {
+        return build_settings.getValue(
+                BuildSettings.SETTING_INCREMENTAL_BUILD,
+                BuildSettings.SETTING_GENERIC_VALUE_TRUE
+        ).equals(BuildSettings.SETTING_GENERIC_VALUE_TRUE);
+    }
+
+    /**
+     * @return How many threads Dx should translate classes and write DEX files with,
+     * by default the number of CPU cores
+     */
+    public int getDexerThreads() {
+        try {
+            int threads = Integer.parseInt(build_settings.getValue(BuildSettings.SETTING_DEXER_THREADS, ""));
+            if (threads > 0) {
+                return threads;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
     public String getDxRunningText() {
         return (isD8Enabled() ? "D8" : "Dx") + " is running...";
     }
@@ -240,8 +284,8 @@ public class ProjectBuilder {
             long savedTimeMillis = System.currentTimeMillis();
             List<String> args = Arrays.asList(
                     "--debug",
-                    "--verbose",
                     "--multi-dex",
+                    "--num-threads=" + getDexerThreads(),
                     "--output=" + yq.binDirectoryPath + File.separator + "dex",
                     proguard.isShrinkingEnabled() ? yq.proguardClassesPath : yq.compiledClassesPath
             );
@@ -359,130 +403,25 @@ public class ProjectBuilder {
     }
 
     /**
-     * Dexes libraries.
+     * Merges DEX files to as few DEX files as possible, see {@link DexMergePlanner}.
      *
      * @return List of result DEX files which were merged or couldn't be merged with others.
      * @throws Exception Thrown if merging had problems
      */
     private Collection<File> dexLibraries(File outputDirectory, List<File> dexes) throws Exception {
-        int lastDexNumber = 1;
-        String nextMergedDexFilename;
-        Collection<File> resultDexFiles = new LinkedList<>();
-        LinkedList<Dex> dexObjects = new LinkedList<>();
-        Iterator<File> toMergeIterator = dexes.iterator();
-
-        List<FieldId> mergedDexFields;
-        List<MethodId> mergedDexMethods;
-        List<ProtoId> mergedDexProtos;
-        List<Integer> mergedDexTypes;
-
-        {
-            // Closable gets closed automatically
-            Dex firstDex = new Dex(new FileInputStream(toMergeIterator.next()));
-            dexObjects.add(firstDex);
-            mergedDexFields = new LinkedList<>(firstDex.fieldIds());
-            mergedDexMethods = new LinkedList<>(firstDex.methodIds());
-            mergedDexProtos = new LinkedList<>(firstDex.protoIds());
-            mergedDexTypes = new LinkedList<>(firstDex.typeIds());
-        }
-
-        while (toMergeIterator.hasNext()) {
-            File dexFile = toMergeIterator.next();
-            nextMergedDexFilename = lastDexNumber == 1 ? "classes.dex" : "classes" + lastDexNumber + ".dex";
-
-            // Closable gets closed automatically
-            Dex dex = new Dex(new FileInputStream(dexFile));
-
-            boolean canMerge = true;
-            List<FieldId> newDexFieldIds = new LinkedList<>();
-            List<MethodId> newDexMethodIds = new LinkedList<>();
-            List<ProtoId> newDexProtoIds = new LinkedList<>();
-            List<Integer> newDexTypeIds = new LinkedList<>();
-
-            bruh:
-            {
-                for (FieldId fieldId : dex.fieldIds()) {
-                    if (!mergedDexFields.contains(fieldId)) {
-                        if (mergedDexFields.size() + newDexFieldIds.size() + 1 > 0xffff) {
-                            LogUtil.d(TAG, "Can't merge DEX file to " + nextMergedDexFilename +
-                                    " because it has too many new field IDs. "
-                                    + nextMergedDexFilename + " will have " + mergedDexFields.size() + " field IDs");
-                            canMerge = false;
-                            break bruh;
-                        } else {
-                            newDexFieldIds.add(fieldId);
-                        }
-                    }
-                }
-
-                for (MethodId methodId : dex.methodIds()) {
-                    if (!newDexMethodIds.contains(methodId)) {
-                        if (mergedDexMethods.size() + newDexMethodIds.size() + 1 > 0xffff) {
-                            LogUtil.d(TAG, "Can't merge DEX file to " + nextMergedDexFilename +
-                                    " because it has too many new method IDs. "
-                                    + nextMergedDexFilename + " will have " + mergedDexMethods.size() + " method IDs");
-                            canMerge = false;
-                            break bruh;
-                        } else {
-                            newDexMethodIds.add(methodId);
-                        }
-                    }
-                }
-
-                for (ProtoId protoId : dex.protoIds()) {
-                    if (!newDexProtoIds.contains(protoId)) {
-                        if (mergedDexProtos.size() + newDexProtoIds.size() + 1 > 0xffff) {
-                            LogUtil.d(TAG, "Can't merge DEX file to " + nextMergedDexFilename +
-                                    " because it has too many new proto IDs. "
-                                    + nextMergedDexFilename + " will have " + mergedDexProtos.size() + " proto IDs");
-                            canMerge = false;
-                            break bruh;
-                        } else {
-                            newDexProtoIds.add(protoId);
-                        }
-                    }
-                }
-
-                for (Integer typeId : dex.typeIds()) {
-                    if (!newDexTypeIds.contains(typeId)) {
-                        if (mergedDexTypes.size() + newDexProtoIds.size() + 1 > 0xffff) {
-                            LogUtil.d(TAG, "Can't merge DEX file to " + nextMergedDexFilename +
-                                    " because it has too many new type IDs. "
-                                    + nextMergedDexFilename + " will have " + mergedDexTypes.size() + " type IDs");
-                            canMerge = false;
-                            break bruh;
-                        } else {
-                            newDexTypeIds.add(typeId);
-                        }
-                    }
-                }
-            }
+        List<Dex> dexObjects = new ArrayList<>(dexes.size());
+        for (File dex : dexes) {
+            dexObjects.add(Dex.map(dex));
+        }
 
-            if (canMerge) {
-                LogUtil.d(TAG, "Merging DEX #" + dexes.indexOf(dexFile) + " as well to " + nextMergedDexFilename);
-                dexObjects.add(dex);
-                mergedDexFields.addAll(newDexFieldIds);
-                mergedDexMethods.addAll(newDexMethodIds);
-                mergedDexProtos.addAll(newDexProtoIds);
-                mergedDexTypes.addAll(newDexTypeIds);
-            } else {
-                File target = new File(outputDirectory, nextMergedDexFilename);
-                mergeDexes(target, dexObjects);
-                resultDexFiles.add(target);
-                dexObjects.clear();
-                dexObjects.add(dex);
+        List<List<Dex>> groups = new DexMergePlanner().plan(dexObjects);
+        LogUtil.d(TAG, "Merging " + dexes.size() + " DEX files to " + groups.size());
 
-                mergedDexFields = new ArrayList<>(dex.fieldIds());
-                mergedDexMethods = new ArrayList<>(dex.methodIds());
-                mergedDexProtos = new ArrayList<>(dex.protoIds());
-                mergedDexTypes = new ArrayList<>(dex.typeIds());
-                lastDexNumber++;
-            }
-        }
-        if (!dexObjects.isEmpty()) {
-            File file = new File(outputDirectory, lastDexNumber == 1 ? "classes.dex" : "classes" + lastDexNumber + ".dex");
-            mergeDexes(file, dexObjects);
-            resultDexFiles.add(file);
+        Collection<File> resultDexFiles = new ArrayList<>(groups.size());
+        for (int i = 0; i < groups.size(); i++) {
+            File target = new File(outputDirectory, i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex");
+            mergeDexes(target, groups.get(i));
+            resultDexFiles.add(target);
         }
 
         return resultDexFiles;
@@ -548,24 +487,21 @@ public class ProjectBuilder {
                     BuildSettings.SETTING_GENERIC_VALUE_TRUE).equals(BuildSettings.SETTING_GENERIC_VALUE_TRUE)) {
                 args.add("-deprecation");
             }
-            args.add("-d");
-            args.add(yq.compiledClassesPath);
-            args.add("-cp");
-            args.add(getClasspath());
-            args.add("-proc:none");
-            args.add(yq.javaFilesPath);
-            args.add(yq.rJavaDirectoryPath);
+
+            ArrayList<String> sourceDirectories = new ArrayList<>();
+            sourceDirectories.add(yq.javaFilesPath);
+            sourceDirectories.add(yq.rJavaDirectoryPath);
             String pathJava = fpu.getPathJava(yq.sc_id);
             if (FileUtil.isExistFile(pathJava)) {
-                args.add(pathJava);
+                sourceDirectories.add(pathJava);
             }
             String pathBroadcast = fpu.getPathBroadcast(yq.sc_id);
             if (FileUtil.isExistFile(pathBroadcast)) {
-                args.add(pathBroadcast);
+                sourceDirectories.add(pathBroadcast);
             }
             String pathService = fpu.getPathService(yq.sc_id);
             if (FileUtil.isExistFile(pathService)) {
-                args.add(pathService);
+                sourceDirectories.add(pathService);
             }
 
             /* Avoid "package ;" line in that file causing issues while compiling */
@@ -574,6 +510,42 @@ public class ProjectBuilder {
                 LogUtil.w(TAG, "Failed to delete file " + rJavaFileWithoutPackage.getAbsolutePath());
             }
 
+            String classpath = getClasspath();
+            IncrementalJavaCompilation incrementalCompilation = null;
+            if (isIncrementalBuildEnabled()) {
+                incrementalCompilation = new IncrementalJavaCompilation(new File(yq.buildCachePath, "javac"));
+                List<File> sourceFiles = new ArrayList<>();
+                for (String sourceDirectory : sourceDirectories) {
+                    sourceFiles.addAll(FileUtil.listFilesRecursively(new File(sourceDirectory), ".java"));
+                }
+                // Directories on the classpath aren't fingerprinted, so changes to Kotlin classes need to be accounted for separately
+                List<File> filesToCompile = incrementalCompilation.prepare(sourceFiles,
+                        HashUtil.hashString(args + "\n" + IncrementalJavaCompilation.fingerprintClasspath(classpath)
+                                + "\n" + KotlinCompilerBridge.getKotlinClassesFingerprint(this)));
+
+                sourceDirectories.clear();
+                for (File file : filesToCompile) {
+                    sourceDirectories.add(file.getAbsolutePath());
+                }
+                args.add("-d");
+                args.add(incrementalCompilation.getClassesDirectory().getAbsolutePath());
+                args.add("-cp");
+                args.add(incrementalCompilation.getClassesDirectory().getAbsolutePath() + ":" + classpath);
+            } else {
+                args.add("-d");
+                args.add(yq.compiledClassesPath);
+                args.add("-cp");
+                args.add(classpath);
+            }
+            args.add("-proc:none");
+            args.addAll(sourceDirectories);
+
+            if (incrementalCompilation != null && sourceDirectories.isEmpty()) {
+                FileUtil.copyDirectory(incrementalCompilation.getClassesDirectory(), new File(yq.compiledClassesPath));
+                LogUtil.d(TAG, "All Java classes are up-to-date, reusing them took " + (System.currentTimeMillis() - savedTimeMillis) + " ms");
+                return;
+            }
+
             /* Start compiling */
             org.eclipse.jdt.internal.compiler.batch.Main main = new org.eclipse.jdt.internal.compiler.batch.Main(outWriter, errWriter, false, null, null);
             LogUtil.d(TAG, "Running Eclipse compiler with these arguments: " + args);
@@ -582,8 +554,15 @@ public class ProjectBuilder {
             LogUtil.d(TAG, "System.out of Eclipse compiler: " + outOutputStream.getOut());
             if (main.globalErrorsCount <= 0) {
                 LogUtil.d(TAG, "System.err of Eclipse compiler: " + errOutputStream.getOut());
+                if (incrementalCompilation != null) {
+                    incrementalCompilation.onCompilationSucceeded();
+                    FileUtil.copyDirectory(incrementalCompilation.getClassesDirectory(), new File(yq.compiledClassesPath));
+                }
                 LogUtil.d(TAG, "Compiling Java files took " + (System.currentTimeMillis() - savedTimeMillis) + " ms");
             } else {
+                if (incrementalCompilation != null) {
+                    incrementalCompilation.onCompilationFailed();
+                }
                 LogUtil.e(TAG, "Failed to compile Java files");
                 throw new zy(errOutputStream.getOut());
             }
@@ -591,59 +570,111 @@ public class ProjectBuilder {
     }
 
     public void buildApk() throws By {
+        packageApk(new File(yq.unsignedApkPath), false);
+    }
+
+    /**
+     * Build the APK to install right away, signed with testkey.
+     * <p>
+     * On Android 8.0+, the APK gets signed while it's being packaged. On older versions,
+     * it gets packaged unsigned and then signed by {@link #signDebugApk()}.
+     */
+    public void buildDebugApk() throws By, GeneralSecurityException, IOException, ClassNotFoundException, IllegalAccessException, InstantiationException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            packageApk(new File(yq.finalToInstallApkPath), true);
+        } else {
+            buildApk();
+            if (progressReceiver != null) {
+                progressReceiver.onProgress("Signing APK...", 20);
+            }
+            signDebugApk();
+        }
+    }
+
+    private void packageApk(File outputFile, boolean signWithTestkey) throws By {
         String firstDexPath = dexesToAddButNotMerge.isEmpty() ? yq.classesDexPath : dexesToAddButNotMerge.remove(0).getAbsolutePath();
         try {
-            ApkBuilder apkBuilder = new ApkBuilder(new File(yq.unsignedUnalignedApkPath), new File(yq.resourcesApkPath), new File(firstDexPath), null, null, System.out);
+            ApkPackager packager = new ApkPackager(outputFile);
+            packager.addArchive(new File(yq.resourcesApkPath));
+            packager.addFile(new File(firstDexPath), "classes.dex");
 
             for (Jp library : builtInLibraryManager.getLibraries()) {
-                apkBuilder.addResourcesFromJar(BuiltInLibraries.getLibraryClassesJarPath(library.getName()));
+                packager.addJavaResources(BuiltInLibraries.getLibraryClassesJarPath(library.getName()));
             }
 
             for (String jarPath : mll.getJarLocalLibrary().split(":")) {
                 if (!jarPath.trim().isEmpty()) {
-                    apkBuilder.addResourcesFromJar(new File(jarPath));
+                    packager.addJavaResources(new File(jarPath));
                 }
             }
 
             /* Add project's native libraries */
             File nativeLibrariesDirectory = new File(fpu.getPathNativelibs(yq.sc_id));
             if (nativeLibrariesDirectory.exists()) {
-                apkBuilder.addNativeLibraries(nativeLibrariesDirectory);
+                packager.addNativeLibraries(nativeLibrariesDirectory);
             }
 
             /* Add Local libraries' native libraries */
             for (String nativeLibraryDirectory : mll.getNativeLibs()) {
-                apkBuilder.addNativeLibraries(new File(nativeLibraryDirectory));
+                packager.addNativeLibraries(new File(nativeLibraryDirectory));
             }
 
             if (dexesToAddButNotMerge.isEmpty()) {
                 List<String> dexFiles = FileUtil.listFiles(yq.binDirectoryPath, "dex");
                 for (String dexFile : dexFiles) {
                     if (!Uri.fromFile(new File(dexFile)).getLastPathSegment().equals("classes.dex")) {
-                        apkBuilder.addFile(new File(dexFile), Uri.parse(dexFile).getLastPathSegment());
+                        packager.addFile(new File(dexFile), Uri.parse(dexFile).getLastPathSegment());
                     }
                 }
             } else {
                 int dexNumber = 2;
 
                 for (File dexFile : dexesToAddButNotMerge) {
-                    apkBuilder.addFile(dexFile, "classes" + dexNumber + ".dex");
+                    packager.addFile(dexFile, "classes" + dexNumber + ".dex");
                     dexNumber++;
                 }
             }
 
-            apkBuilder.setDebugMode(false);
-            apkBuilder.sealApk();
-        } catch (ApkCreationException | SealedApkException e) {
-            throw new By(e.getMessage());
-        } catch (DuplicateFileException e) {
+            if (signWithTestkey) {
+                File testkeyDirectory = new File(BuiltInLibraries.EXTRACTED_COMPILE_ASSETS_PATH, "testkey");
+                PrivateKey key;
+                try (FileInputStream keyInput = new FileInputStream(new File(testkeyDirectory, "testkey.pk8"))) {
+                    key = KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(FileUtil.readFromInputStream(keyInput)));
+                }
+                X509Certificate certificate;
+                try (FileInputStream certificateInput = new FileInputStream(new File(testkeyDirectory, "testkey.x509.pem"))) {
+                    certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(certificateInput);
+                }
+                packager.setSigningKey(key, certificate, settings.getMinSdkVersion());
+            }
+
+            File previousApk = null;
+            if (isIncrementalBuildEnabled()) {
+                previousApk = new File(yq.buildCachePath, "apk" + File.separator + "previous.apk");
+                packager.setPreviousApk(previousApk);
+            }
+
+            packager.write();
+
+            if (previousApk != null) {
+                /* Keep a copy, so that the next build can reuse its unchanged compressed entries */
+                File temporaryFile = new File(previousApk.getParentFile(), previousApk.getName() + ".tmp");
+                FileUtil.makeDir(previousApk.getParent());
+                FileUtil.copyFile(outputFile.getAbsolutePath(), temporaryFile.getAbsolutePath());
+                if (!temporaryFile.renameTo(previousApk)) {
+                    LogUtil.w(TAG, "Failed to move " + temporaryFile + " to " + previousApk);
+                }
+            }
+        } catch (ApkPackager.DuplicateEntryException e) {
             String message = "Duplicate files from two libraries detected \r\n";
-            message += "File1: " + e.getFile1() + " \r\n";
-            message += "File2: " + e.getFile2() + " \r\n";
-            message += "Archive path: " + e.getArchivePath();
+            message += "File1: " + e.getFirstOrigin() + " \r\n";
+            message += "File2: " + e.getSecondOrigin() + " \r\n";
+            message += "Archive path: " + e.getEntryName();
             throw new By(message);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new By("Couldn't build APK " + outputFile + ": " + Log.getStackTraceString(e));
         }
-        LogUtil.d(TAG, "Time passed since starting to compile resources until building the unsigned APK: " +
+        LogUtil.d(TAG, "Time passed since starting to compile resources until building the " + (signWithTestkey ? "signed" : "unsigned") + " APK: " +
                 (System.currentTimeMillis() - timestampResourceCompilationStarted) + " ms");
     }
 
@@ -658,6 +689,38 @@ public class ProjectBuilder {
      */
     public void getDexFilesReady() throws Exception {
         long savedTimeMillis = System.currentTimeMillis();
+        if (libraryDexes == null) {
+            collectLibraryDexFiles();
+        }
+        ArrayList<File> dexes = new ArrayList<>(libraryDexes);
+
+        for (String file : FileUtil.listFiles(yq.binDirectoryPath + File.separator + "dex", "dex")) {
+            dexes.add(new File(file));
+        }
+
+        LogUtil.d(TAG, "Will merge these " + dexes.size() + " DEX files to classes.dex: " + dexes);
+
+        if (isDexMergingNeeded()) {
+            dexLibraries(new File(yq.binDirectoryPath), dexes);
+            LogUtil.d(TAG, "Merging DEX files took " + (System.currentTimeMillis() - savedTimeMillis) + " ms");
+        } else {
+            dexesToAddButNotMerge = dexes;
+            LogUtil.d(TAG, "Skipped merging DEX files due to debug build with minSdkVersion >= 21");
+        }
+    }
+
+    private boolean isDexMergingNeeded() {
+        return settings.getMinSdkVersion() < 21 || !yq.N.isDebugBuild;
+    }
+
+    /**
+     * Collects the DEX files of all libraries the project uses, and merges them already if DEX files
+     * need to be merged. Doesn't depend on the project's compiled code, so it can run while the project
+     * is being compiled.
+     *
+     * @throws Exception Thrown if merging failed
+     */
+    public void collectLibraryDexFiles() throws Exception {
         ArrayList<File> dexes = new ArrayList<>();
 
         /* Add AndroidX MultiDex library if needed */
@@ -714,19 +777,51 @@ public class ProjectBuilder {
             }
         }
 
-        for (String file : FileUtil.listFiles(yq.binDirectoryPath + File.separator + "dex", "dex")) {
-            dexes.add(new File(file));
+        if (isDexMergingNeeded() && isIncrementalBuildEnabled() && !dexes.isEmpty()) {
+            libraryDexes = premergeLibraryDexes(dexes);
+        } else {
+            libraryDexes = dexes;
         }
+    }
 
-        LogUtil.d(TAG, "Will merge these " + dexes.size() + " DEX files to classes.dex: " + dexes);
+    /**
+     * Merges library DEX files among themselves, reusing the last build's result if the libraries'
+     * DEX files haven't changed since. The merged DEX files are mostly full, so merging them with the
+     * project's DEX files later on mostly copies them.
+     *
+     * @return The merged DEX files, in order
+     */
+    private List<File> premergeLibraryDexes(List<File> dexes) throws Exception {
+        long savedTimeMillis = System.currentTimeMillis();
+        File cacheDirectory = new File(yq.buildCachePath, "libraryDexes");
+        File mergedDirectory = new File(cacheDirectory, "merged");
+        File keyFile = new File(cacheDirectory, "key");
 
-        if (settings.getMinSdkVersion() < 21 || !yq.N.isDebugBuild) {
-            dexLibraries(new File(yq.binDirectoryPath), dexes);
-            LogUtil.d(TAG, "Merging DEX files took " + (System.currentTimeMillis() - savedTimeMillis) + " ms");
-        } else {
-            dexesToAddButNotMerge = dexes;
-            LogUtil.d(TAG, "Skipped merging DEX files due to debug build with minSdkVersion >= 21");
+        StringBuilder key = new StringBuilder();
+        for (File dex : dexes) {
+            key.append(dex.getAbsolutePath()).append('|').append(HashUtil.hashFile(dex)).append('\n');
+        }
+
+        if (keyFile.exists() && key.toString().equals(FileUtil.readFile(keyFile.getAbsolutePath()))) {
+            List<File> merged = new ArrayList<>();
+            File dex;
+            while ((dex = new File(mergedDirectory, merged.isEmpty() ? "classes.dex" : "classes" + (merged.size() + 1) + ".dex")).exists()) {
+                merged.add(dex);
+            }
+            if (!merged.isEmpty()) {
+                LogUtil.d(TAG, "Reusing " + merged.size() + " pre-merged library DEX files, checking them took "
+                        + (System.currentTimeMillis() - savedTimeMillis) + " ms");
+                return merged;
+            }
         }
+
+        FileUtil.deleteFile(cacheDirectory.getAbsolutePath());
+        FileUtil.makeDir(mergedDirectory.getAbsolutePath());
+        List<File> merged = new ArrayList<>(dexLibraries(mergedDirectory, dexes));
+        FileUtil.writeFile(keyFile.getAbsolutePath(), key.toString());
+        LogUtil.d(TAG, "Pre-merging " + dexes.size() + " library DEX files to " + merged.size() + " took "
+                + (System.currentTimeMillis() - savedTimeMillis) + " ms");
+        return merged;
     }
 
     /**
@@ -802,16 +897,44 @@ public class ProjectBuilder {
         return builtInLibraryManager;
     }
 
+    public BuildConfigurationSnapshot getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @return Names of all built-in libraries the build reads files of, which are those of
+     * {@link #getBuiltInLibraryManager()}, and MultiDex and HTTP legacy if needed
+     */
+    public List<String> getUsedBuiltInLibraryNames() {
+        List<String> names = new ArrayList<>();
+        if (settings.getMinSdkVersion() < 21) {
+            names.add(BuiltInLibraries.ANDROIDX_MULTIDEX);
+        }
+        if (!build_settings.getValue(BuildSettings.SETTING_NO_HTTP_LEGACY, BuildSettings.SETTING_GENERIC_VALUE_FALSE)
+                .equals(BuildSettings.SETTING_GENERIC_VALUE_TRUE)) {
+            names.add(BuiltInLibraries.HTTP_LEGACY_ANDROID_28);
+        }
+        for (Jp library : builtInLibraryManager.getLibraries()) {
+            names.add(library.getName());
+        }
+        return names;
+    }
+
     /**
      * Sign the debug APK file with testkey.
      * <p>
      * This method uses apksigner, but kellinwood's zipsigner as fallback.
      */
     public void signDebugApk() throws GeneralSecurityException, IOException, ClassNotFoundException, IllegalAccessException, InstantiationException {
-        TestkeySignBridge.signWithTestkey(yq.unsignedUnalignedApkPath, yq.finalToInstallApkPath);
+        TestkeySignBridge.signWithTestkey(yq.unsignedApkPath, yq.finalToInstallApkPath);
     }
 
     private void mergeDexes(File target, List<Dex> dexes) throws IOException {
+        if (dexes.size() == 1) {
+            // Nothing to merge, e.g. an already pre-merged library DEX file
+            dexes.get(0).writeTo(target);
+            return;
+        }
         DexMerger merger = new DexMerger(dexes.toArray(new Dex[0]), CollisionPolicy.KEEP_FIRST, new DxContext());
         merger.merge().writeTo(target);
     }
@@ -882,20 +1005,42 @@ public class ProjectBuilder {
         }
         config.addAll(mll.getPgRules());
         ArrayList<String> jars = new ArrayList<>();
-        jars.add(yq.compiledClassesPath + ".jar");
+        jars.add(yq.compiledClassesPath);
+        List<String> fullModeJars = new ArrayList<>();
 
         for (HashMap<String, Object> hashMap : mll.list) {
             String obj = hashMap.get("name").toString();
             if (hashMap.containsKey("jarPath") && proguard.libIsProguardFMEnabled(obj)) {
-                jars.add(hashMap.get("jarPath").toString());
+                fullModeJars.add(hashMap.get("jarPath").toString());
+            }
+        }
+        jars.addAll(fullModeJars);
+        String[] libraries = getProguardClasspath().split(":");
+
+        ShrinkerResultCache cache = null;
+        if (isIncrementalBuildEnabled()) {
+            cache = new ShrinkerResultCache(new File(yq.buildCachePath, "r8"))
+                    .addOption("minSdkVersion", settings.getMinSdkVersion())
+                    .addOption("rules", rules)
+                    .addInputs("config", config)
+                    .addInputs("program", Collections.singletonList(yq.compiledClassesPath))
+                    .addInputs("program", fullModeJars)
+                    .addInputs("library", Arrays.asList(libraries))
+                    .addOutput(new File(yq.binDirectoryPath, "dex"))
+                    .addOutput(new File(yq.proguardMappingPath));
+            if (cache.restore()) {
+                LogUtil.d(TAG, "Skipped R8, restoring its outputs took " + (System.currentTimeMillis() - savedTimeMillis) + " ms");
+                return;
             }
         }
         try {
-            JarBuilder.INSTANCE.generateJar(new File(yq.compiledClassesPath));
-            new R8Compiler(rules, config.toArray(new String[0]), getProguardClasspath().split(":"), jars.toArray(new String[0]), settings.getMinSdkVersion(), yq).compile();
+            new R8Compiler(rules, config.toArray(new String[0]), libraries, jars.toArray(new String[0]), settings.getMinSdkVersion(), yq).compile();
         } catch (Exception e) {
             throw new IOException(e);
         }
+        if (cache != null) {
+            cache.store();
+        }
         LogUtil.d(TAG, "R8 took " + (System.currentTimeMillis() - savedTimeMillis) + " ms");
     }
 
@@ -950,6 +1095,24 @@ public class ProjectBuilder {
         }
         LogUtil.d(TAG, "About to run ProGuard with these arguments: " + args);
 
+        ShrinkerResultCache cache = null;
+        if (isIncrementalBuildEnabled()) {
+            cache = new ShrinkerResultCache(new File(yq.buildCachePath, "proguard"))
+                    .addOption("arguments", args);
+            for (int i = 0; i + 1 < args.size(); i++) {
+                switch (args.get(i)) {
+                    case "-include", "-injars", "-libraryjars" ->
+                            cache.addInputs(args.get(i).substring(1), Arrays.asList(args.get(i + 1).split(":")));
+                    case "-outjars", "-printseeds", "-printusage", "-printmapping" ->
+                            cache.addOutput(new File(args.get(i + 1)));
+                }
+            }
+            if (cache.restore()) {
+                LogUtil.d(TAG, "Skipped ProGuard, restoring its outputs took " + (System.currentTimeMillis() - savedTimeMillis) + " ms");
+                return;
+            }
+        }
+
         Configuration configuration = new Configuration();
 
         try {
@@ -968,44 +1131,28 @@ public class ProjectBuilder {
         } catch (Exception e) {
             throw new IOException(e);
         }
+        if (cache != null) {
+            cache.store();
+        }
 
         LogUtil.d(TAG, "ProGuard took " + (System.currentTimeMillis() - savedTimeMillis) + " ms");
     }
 
     public void runStringfog() {
         try {
-            StringFogMappingPrinter stringFogMappingPrinter = new StringFogMappingPrinter(new File(yq.binDirectoryPath,
-                    "stringFogMapping.txt"));
-            StringFogClassInjector stringFogClassInjector = new StringFogClassInjector(new String[0],
-                    "UTF-8",
-                    "com.github.megatronking.stringfog.xor.StringFogImpl",
-                    "com.github.megatronking.stringfog.xor.StringFogImpl",
-                    stringFogMappingPrinter);
-            stringFogMappingPrinter.startMappingOutput();
-            stringFogMappingPrinter.ouputInfo("UTF-8", "com.github.megatronking.stringfog.xor.StringFogImpl");
-            stringFogClassInjector.doFog2ClassInDir(new File(yq.compiledClassesPath));
-            KB.a(context, "stringfog/stringfog.zip", yq.compiledClassesPath);
+            File cacheDirectory = new File(yq.buildCachePath, "stringfog");
+            if (!isIncrementalBuildEnabled()) {
+                // Incremental builds are disabled, so fog every class again
+                FileUtil.deleteFile(cacheDirectory.getAbsolutePath());
+            }
+            IncrementalStringFog stringFog = new IncrementalStringFog(cacheDirectory, new File(yq.compiledClassesPath));
+            stringFog.fog(new File(yq.binDirectoryPath, "stringFogMapping.txt"));
+            stringFog.addRuntime(context);
         } catch (Exception e) {
             LogUtil.e("StringFog", "Failed to run StringFog", e);
         }
     }
 
-    public void runZipalign(String inPath, String outPath) throws By {
-        LogUtil.d(TAG, "About to zipalign " + inPath + " to " + outPath);
-        long savedTimeMillis = System.currentTimeMillis();
-
-        try (RandomAccessFile in = new RandomAccessFile(inPath, "r");
-             FileOutputStream out = new FileOutputStream(outPath)) {
-            ZipAlign.alignZip(in, out);
-        } catch (IOException e) {
-            throw new By("Couldn't run zipalign on " + inPath + " with output path " + outPath + ": " + Log.getStackTraceString(e));
-        } catch (InvalidZipException e) {
-            throw new By("Failed to zipalign due to the given zip being invalid: " + Log.getStackTraceString(e));
-        }
-
-        LogUtil.d(TAG, "zipalign took " + (System.currentTimeMillis() - savedTimeMillis) + " ms");
-    }
-
     public void setBuildAppBundle(boolean buildAppBundle) {
         this.buildAppBundle = buildAppBundle;
     }
@@ -18,15 +18,19 @@ import com.besome.sketch.beans.ViewBean;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
+import dev.aldi.sayuti.block.ExtraBlockFile;
 import mod.hey.studios.build.BuildSettings;
 import mod.hey.studios.project.ProjectSettings;
 import mod.hey.studios.util.ProjectFile;
 import mod.hilal.saif.blocks.CommandBlock;
+import mod.jbk.build.BuildConfigurationSnapshot;
+import mod.jbk.build.GeneratedCodeCache;
 import mod.pranav.viewbinding.ViewBindingBuilder;
 
 import pro.sketchware.SketchApplication;
@@ -67,9 +71,10 @@ public class yq {
     public final String classesDexPath;
 
     /**
+     * Path of the packaged, already zip-aligned, but unsigned APK.
      * Example content: /storage/emulated/0/.sketchware/mysc/605/bin/InternalDemo.apk.unsigned
      */
-    public final String unsignedUnalignedApkPath;
+    public final String unsignedApkPath;
 
     /**
      * Example content: /storage/emulated/0/.sketchware/mysc/605/bin/InternalDemo.apk
@@ -84,11 +89,6 @@ public class yq {
     private final oB fileUtil;
     public jq N;
 
-    /**
-     * Example content: /storage/emulated/0/.sketchware/mysc/605/bin/InternalDemo.apk.unsigned.aligned
-     */
-    public final String unsignedAlignedApkPath;
-
     public final String sc_id;
 
     /**
@@ -164,6 +164,11 @@ public class yq {
      */
     public final ProjectSettings projectSettings;
 
+    /**
+     * Configuration of the build currently generating this project's files, if any
+     */
+    private BuildConfigurationSnapshot buildConfiguration;
+
     /**
      * Example content: /storage/emulated/0/.sketchware/mysc/605/app/src/main/AndroidManifest.xml
      */
@@ -214,11 +219,22 @@ public class yq {
      * Example content: /storage/emulated/0/.sketchware/mysc/605/app/src/main/res/raw
      */
     public final String importedSoundsPath;
+
+    /**
+     * Directory with caches of incremental builds. Unlike {@link yq#binDirectoryPath}, it doesn't get
+     * deleted before every build, e.g. /data/user/0/pro.sketchware/cache/buildCache/605
+     */
+    public final String buildCachePath;
     
     private final Context context;
 
     public boolean generateDataBindingClasses;
 
+    /**
+     * Cache of generated Activities and layouts, only used while generating files for building
+     */
+    private GeneratedCodeCache generatedCodeCache;
+
     public yq(Context context, String sc_id) {
         this(context, wq.d(sc_id), lC.b(sc_id));
     }
@@ -264,10 +280,32 @@ public class yq {
         androidManifestPath = projectMyscPath + "app" + File.separator + "src" + File.separator + "main" + File.separator + "AndroidManifest.xml";
         resourcesApkPath = binDirectoryPath + File.separator + projectName + ".apk.res";
         classesDexPath = binDirectoryPath + File.separator + "classes.dex";
-        unsignedUnalignedApkPath = binDirectoryPath + File.separator + projectName + ".apk.unsigned";
-        unsignedAlignedApkPath = unsignedUnalignedApkPath + ".aligned";
+        unsignedApkPath = binDirectoryPath + File.separator + projectName + ".apk.unsigned";
         finalToInstallApkPath = binDirectoryPath + File.separator + projectName + ".apk";
         releaseApkPath = wq.o() + File.separator + projectName + "_release.apk";
+        buildCachePath = context.getCacheDir().getAbsolutePath() + File.separator + "buildCache" + File.separator + sc_id;
+    }
+
+    /**
+     * Makes generating the project's files use the configuration of the build that's about to run,
+     * instead of reading it again.
+     *
+     * @param configuration The build's configuration, or null once it's finished
+     */
+    public void setBuildConfiguration(BuildConfigurationSnapshot configuration) {
+        buildConfiguration = configuration;
+    }
+
+    private BuildSettings getBuildSettings() {
+        return buildConfiguration != null ? buildConfiguration.getBuildSettings() : new BuildSettings(sc_id);
+    }
+
+    /**
+     * @return The build's project settings if a build is running, otherwise freshly read ones,
+     * unlike {@link #projectSettings} which may be out of date
+     */
+    private ProjectSettings getCurrentProjectSettings() {
+        return buildConfiguration != null ? buildConfiguration.getProjectSettings() : new ProjectSettings(sc_id);
     }
 
     /**
@@ -380,7 +418,7 @@ public class yq {
      * Generates DebugActivity.java, SketchApplication.java, and SketchLogger.java, if necessary.
      */
     public void a(Context context) {
-        boolean logcatEnabled = N.isDebugBuild && new BuildSettings(sc_id).getValue(
+        boolean logcatEnabled = N.isDebugBuild && getBuildSettings().getValue(
                 BuildSettings.SETTING_ENABLE_LOGCAT, BuildSettings.SETTING_GENERIC_VALUE_TRUE).equals(BuildSettings.SETTING_GENERIC_VALUE_TRUE);
 
         String javaDir = FileUtil.getExternalStorageDir() + "/.sketchware/data/" + sc_id + "/files/java/";
@@ -395,7 +433,7 @@ public class yq {
                     )).replaceAll(packageName));
         }
 
-        String customApplicationClassName = new ProjectSettings(sc_id).getValue(ProjectSettings.SETTING_APPLICATION_CLASS,
+        String customApplicationClassName = getCurrentProjectSettings().getValue(ProjectSettings.SETTING_APPLICATION_CLASS,
                 ".SketchApplication");
         boolean notUsingCustomApplicationClass = customApplicationClassName.equals(".SketchApplication");
         if (!new File(javaDir, "SketchApplication.java").exists() && notUsingCustomApplicationClass) {
@@ -688,7 +726,19 @@ public class yq {
      * Generates the project's files, such as layouts, Java files, but also build.gradle and secrets.xml.
      */
     public void b(hC projectFileManager, eC projectDataManger, iC projectLibraryManager, BuiltInLibraryManager builtInLibraryManager) {
-        ArrayList<SrcCodeBean> srcCodeBeans = a(projectFileManager, projectDataManger, builtInLibraryManager);
+        if (getBuildSettings().getValue(BuildSettings.SETTING_INCREMENTAL_BUILD, BuildSettings.SETTING_GENERIC_VALUE_TRUE)
+                .equals(BuildSettings.SETTING_GENERIC_VALUE_TRUE)) {
+            generatedCodeCache = new GeneratedCodeCache(new File(buildCachePath, "generated"), N, getCodeGeneratorInputFiles());
+        }
+        ArrayList<SrcCodeBean> srcCodeBeans;
+        try {
+            srcCodeBeans = a(projectFileManager, projectDataManger, builtInLibraryManager);
+            if (generatedCodeCache != null) {
+                generatedCodeCache.removeUnusedEntries();
+            }
+        } finally {
+            generatedCodeCache = null;
+        }
         if (N.u) {
             XmlBuilder pathsTag = new XmlBuilder("paths");
             pathsTag.addAttribute("xmlns", "android", "http://schemas.android.com/apk/res/android");
@@ -767,7 +817,7 @@ public class yq {
         for (ProjectFileBean activity : projectFileManager.b()) {
             if (!javaFiles.contains(new File(javaDir + activity.getJavaName()))) {
                 srcCodeBeans.add(new SrcCodeBean(activity.getJavaName(),
-                        new Jx(N, activity, projectDataManager).generateCode()));
+                        generateActivityCode(activity, projectFileManager, projectDataManager)));
             }
         }
 
@@ -778,25 +828,23 @@ public class yq {
         }
         
         var viewBindingBuilder = new ViewBindingBuilder(List.of(), new File("."), packageName);
+        // Layouts get command blocks applied which were collected while generating Activities
+        var xmlCommands = generatedCodeCache != null ? CommandBlock.getXmlCommands() : null;
 
         // Generate layouts unless a custom version of it exists already
         // at /Internal storage/.sketchware/data/<sc_id>/files/resource/layout/
         ArrayList<ProjectFileBean> regularLayouts = projectFileManager.b();
         for (ProjectFileBean layout : regularLayouts) {
             String xmlName = layout.getXmlName();
-            Ox ox = new Ox(N, layout);
-            ox.a(eC.a(projectDataManager.d(xmlName)), projectDataManager.h(xmlName));
             var ogFile = new File(layoutDir + xmlName);
             if (!layoutFiles.contains(ogFile)) {
-                srcCodeBeans.add(new SrcCodeBean(xmlName, CommandBlock.applyCommands(xmlName, ox.b())));
+                String layoutCode = generateLayoutCode(layout, false, projectDataManager.d(xmlName), projectDataManager.h(xmlName), xmlCommands);
+                srcCodeBeans.add(new SrcCodeBean(xmlName, layoutCode));
                 
                 if (isViewBindingEnable()) {
-                    var privFile = new File(context.getCacheDir(), xmlName);
-                    FileUtil.writeFile(privFile.getAbsolutePath(), CommandBlock.applyCommands(xmlName, ox.b()));
-                    var code = viewBindingBuilder.generateBindingForLayout(privFile);
                     srcCodeBeans.add(new SrcCodeBean(
                         ViewBindingBuilder.generateFileNameForLayout(xmlName.replace(".xml", "")) + ".java", 
-                        CommandBlock.applyCommands(xmlName, code)
+                        generateViewBindingCode(viewBindingBuilder, xmlName, layoutCode)
                     ));
                 }
             }
@@ -805,19 +853,15 @@ public class yq {
         ArrayList<ProjectFileBean> customViewFiles = projectFileManager.c();
         for (ProjectFileBean customViewFile : customViewFiles) {
             String xmlName = customViewFile.getXmlName();
-            Ox ox = new Ox(N, customViewFile);
-            ox.a(eC.a(projectDataManager.d(xmlName)));
             var ogFile = new File(layoutDir + xmlName);
             if (!layoutFiles.contains(ogFile)) {
-                srcCodeBeans.add(new SrcCodeBean(xmlName, CommandBlock.applyCommands(xmlName, ox.b())));
+                String layoutCode = generateLayoutCode(customViewFile, true, projectDataManager.d(xmlName), null, xmlCommands);
+                srcCodeBeans.add(new SrcCodeBean(xmlName, layoutCode));
                 
                 if (isViewBindingEnable()) {
-                    var privFile = new File(context.getCacheDir(), xmlName);
-                    FileUtil.writeFile(privFile.getAbsolutePath(), CommandBlock.applyCommands(xmlName, ox.b()));
-                    var code = viewBindingBuilder.generateBindingForLayout(privFile);
                     srcCodeBeans.add(new SrcCodeBean(
                         ViewBindingBuilder.generateFileNameForLayout(xmlName.replace(".xml", "")) + ".java", 
-                        CommandBlock.applyCommands(xmlName, code)
+                        generateViewBindingCode(viewBindingBuilder, xmlName, layoutCode)
                     ));
                 }
             }
@@ -872,6 +916,97 @@ public class yq {
         return srcCodeBeans;
     }
 
+    private String generateActivityCode(ProjectFileBean activity, hC projectFileManager, eC projectDataManager) {
+        if (generatedCodeCache == null) {
+            return new Jx(N, activity, projectDataManager).generateCode();
+        }
+
+        String javaName = activity.getJavaName();
+        String xmlName = activity.getXmlName();
+        // Adapters of ListViews and such get generated from custom views
+        ArrayList<ArrayList<ViewBean>> customViews = new ArrayList<>();
+        for (ProjectFileBean customView : projectFileManager.c()) {
+            customViews.add(projectDataManager.c.get(customView.getXmlName()));
+        }
+        return generatedCodeCache.get(javaName, () -> new Jx(N, activity, projectDataManager).generateCode(),
+                activity,
+                projectDataManager.c.get(xmlName),
+                projectDataManager.c.get("_drawer_" + xmlName),
+                projectDataManager.j.get(xmlName),
+                projectDataManager.d.get(javaName),
+                projectDataManager.e.get(javaName),
+                projectDataManager.f.get(javaName),
+                projectDataManager.g.get(javaName),
+                projectDataManager.h.get(javaName),
+                projectDataManager.i.get(javaName),
+                customViews);
+    }
+
+    /**
+     * @param isCustomView If <code>layout</code> is a custom view, which don't have a FAB
+     */
+    private String generateLayoutCode(ProjectFileBean layout, boolean isCustomView, ArrayList<ViewBean> views, ViewBean fab,
+                                      ArrayList<HashMap<String, Object>> xmlCommands) {
+        String xmlName = layout.getXmlName();
+        GeneratedCodeCache.Generator generator = () -> {
+            Ox ox = new Ox(N, layout);
+            if (isCustomView) {
+                ox.a(eC.a(views));
+            } else {
+                ox.a(eC.a(views), fab);
+            }
+            return CommandBlock.applyCommands(xmlName, ox.b());
+        };
+
+        if (generatedCodeCache == null) {
+            return generator.generate();
+        }
+        return generatedCodeCache.get(xmlName, generator, layout, isCustomView, views, fab, xmlCommands);
+    }
+
+    private String generateViewBindingCode(ViewBindingBuilder viewBindingBuilder, String xmlName, String layoutCode) {
+        GeneratedCodeCache.Generator generator = () -> {
+            var privFile = new File(context.getCacheDir(), xmlName);
+            FileUtil.writeFile(privFile.getAbsolutePath(), layoutCode);
+            var code = viewBindingBuilder.generateBindingForLayout(privFile);
+            return CommandBlock.applyCommands(xmlName, code);
+        };
+
+        if (generatedCodeCache == null) {
+            return generator.generate();
+        }
+        return generatedCodeCache.get("binding:" + xmlName, generator, packageName, layoutCode);
+    }
+
+    /**
+     * @return Files besides the project's logic and views that generated code depends on, like project
+     * settings, Local libraries, injections, custom blocks and custom components
+     */
+    private List<File> getCodeGeneratorInputFiles() {
+        List<File> inputFiles = new ArrayList<>();
+        File[] projectDataFiles = new File(FileUtil.getExternalStorageDir() + "/.sketchware/data/" + sc_id).listFiles();
+        if (projectDataFiles != null) {
+            // file, library, logic, resource and view get passed as data managers, files contains imported files
+            List<String> excludedNames = List.of("file", "library", "logic", "resource", "view", "files");
+            for (File projectDataFile : projectDataFiles) {
+                if (!excludedNames.contains(projectDataFile.getName())) {
+                    inputFiles.add(projectDataFile);
+                }
+            }
+        }
+        File[] systemDataFiles = new File(wq.getAbsolutePathOf(wq.EXTRA_SYSTEM_DATA)).listFiles();
+        if (systemDataFiles != null) {
+            for (File systemDataFile : systemDataFiles) {
+                if (systemDataFile.isFile()) {
+                    inputFiles.add(systemDataFile);
+                }
+            }
+        }
+        inputFiles.add(ExtraBlockFile.EXTRA_BLOCKS_DATA_FILE);
+        Collections.sort(inputFiles);
+        return inputFiles;
+    }
+
     private boolean isViewBindingEnable() {
         return generateDataBindingClasses && projectSettings.getValue(ProjectSettings.SETTING_ENABLE_VIEWBINDING, ProjectSettings.SETTING_GENERIC_VALUE_FALSE).equals(ProjectSettings.SETTING_GENERIC_VALUE_TRUE);
     }
@@ -75,6 +75,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import a.a.a.DB;
 import a.a.a.GB;
@@ -110,15 +111,16 @@ import mod.hey.studios.build.BuildSettingsDialog;
 import mod.hey.studios.compiler.kotlin.KotlinCompilerBridge;
 import mod.hey.studios.project.custom_blocks.CustomBlocksDialog;
 import mod.hey.studios.project.proguard.ManageProguardActivity;
-import mod.hey.studios.project.proguard.ProguardHandler;
 import mod.hey.studios.project.stringfog.ManageStringFogFragment;
-import mod.hey.studios.project.stringfog.StringfogHandler;
 import mod.hey.studios.util.Helper;
 import mod.hey.studios.util.SystemLogPrinter;
 import mod.hilal.saif.activities.android_manifest.AndroidManifestInjection;
 import mod.hilal.saif.activities.tools.ConfigActivity;
+import mod.jbk.build.BuildConfigurationSnapshot;
+import mod.jbk.build.BuildPipeline;
 import mod.jbk.build.BuildProgressReceiver;
 import mod.jbk.build.BuiltInLibraries;
+import mod.jbk.build.compiler.resource.Aapt2Daemon;
 import mod.jbk.code.CodeEditorColorSchemes;
 import mod.jbk.code.CodeEditorLanguages;
 import mod.jbk.diagnostic.CompileErrorSaver;
@@ -605,6 +607,9 @@ public class DesignActivity extends BaseAppCompatActivity implements View.OnClic
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(buildCancelReceiver);
+        // The editing session is over, no need to keep AAPT2 and kotlinc around for the next build
+        Aapt2Daemon.shutdownAll();
+        KotlinCompilerBridge.releaseWarmCompiler();
     }
 
     private final BroadcastReceiver buildCancelReceiver = new BroadcastReceiver() {
@@ -1042,6 +1047,9 @@ public class DesignActivity extends BaseAppCompatActivity implements View.OnClic
         private final ExecutorService executorService = Executors.newSingleThreadExecutor();
         private volatile boolean canceled;
         private volatile boolean isBuildFinished;
+        private volatile BuildPipeline pipeline;
+        private volatile String lastProcessOutput;
+        private final AtomicBoolean processOutputUpdatePending = new AtomicBoolean();
         private final NotificationManager notificationManager;
         private final int notificationId = 1;
         private boolean isShowingNotification = false;
@@ -1088,6 +1096,8 @@ public class DesignActivity extends BaseAppCompatActivity implements View.OnClic
             try {
                 var q = activity.q;
                 var sc_id = DesignActivity.sc_id;
+                var configuration = new BuildConfigurationSnapshot(sc_id);
+                q.setBuildConfiguration(configuration);
                 onProgress("Deleting temporary files...", 1);
                 FileUtil.deleteFile(q.projectMyscPath);
 
@@ -1117,7 +1127,7 @@ public class DesignActivity extends BaseAppCompatActivity implements View.OnClic
                 kC = jC.d(sc_id);
                 kC.a(q.assetsPath + File.separator + "fonts");
 
-                ProjectBuilder builder = new ProjectBuilder(this, activity.getApplicationContext(), q);
+                ProjectBuilder builder = new ProjectBuilder(this, activity.getApplicationContext(), q, configuration);
 
                 var fileManager = jC.b(sc_id);
                 var dataManager = jC.a(sc_id);
@@ -1128,72 +1138,51 @@ public class DesignActivity extends BaseAppCompatActivity implements View.OnClic
                 q.f();
                 q.e();
 
-                builder.maybeExtractAapt2();
-                if (canceled) {
-                    return;
-                }
-
-                onProgress("Extracting built-in libraries...", 3);
-                BuiltInLibraries.extractCompileAssets(this);
-                if (canceled) {
-                    return;
-                }
-
-                onProgress("AAPT2 is running...", 8);
-                builder.compileResources();
-                if (canceled) {
-                    return;
-                }
-
-                onProgress("Generating view binding...", 11);
-                builder.generateViewBinding();
-                if (canceled) {
-                    return;
-                }
-
-                KotlinCompilerBridge.compileKotlinCodeIfPossible(this, builder);
-                if (canceled) {
-                    return;
-                }
-
-                onProgress("Java is compiling...", 13);
-                builder.compileJavaCode();
-                if (canceled) {
-                    return;
-                }
-
-                StringfogHandler stringfogHandler = new StringfogHandler(sc_id);
-                stringfogHandler.start(this, builder);
-                if (canceled) {
-                    return;
-                }
-
-                ProguardHandler proguardHandler = new ProguardHandler(sc_id);
-                proguardHandler.start(this, builder);
-                if (canceled) {
-                    return;
-                }
-
-                onProgress(builder.getDxRunningText(), 17);
-                builder.createDexFilesFromClasses();
-                if (canceled) {
-                    return;
-                }
-
-                onProgress("Merging DEX files...", 18);
-                builder.getDexFilesReady();
-                if (canceled) {
-                    return;
-                }
-
-                onProgress("Building APK...", 19);
-                builder.buildApk();
+                BuildPipeline pipeline = new BuildPipeline();
+                var extractAapt2 = pipeline.addStage("Extract AAPT2", builder::maybeExtractAapt2);
+                var extractLibraries = pipeline.addStage("Extract built-in libraries", () -> {
+                    onProgress("Extracting built-in libraries...", 3);
+                    BuiltInLibraries.extractCompileAssets(builder.getUsedBuiltInLibraryNames(), this);
+                });
+                var compileResources = pipeline.addStage("Compile resources", () -> {
+                    onProgress("AAPT2 is running...", 8);
+                    builder.compileResources();
+                }, extractAapt2, extractLibraries);
+                var generateViewBinding = pipeline.addStage("Generate view binding", () -> {
+                    onProgress("Generating view binding...", 11);
+                    builder.generateViewBinding();
+                });
+                var compileKotlin = pipeline.addStage("Compile Kotlin",
+                        () -> KotlinCompilerBridge.compileKotlinCodeIfPossible(this, builder),
+                        compileResources, generateViewBinding);
+                var compileJava = pipeline.addStage("Compile Java", () -> {
+                    onProgress("Java is compiling...", 13);
+                    builder.compileJavaCode();
+                }, compileKotlin);
+                var runStringfog = pipeline.addStage("StringFog",
+                        () -> configuration.getStringfog().start(this, builder), compileJava);
+                var runShrinker = pipeline.addStage("Shrink",
+                        () -> configuration.getProguard().start(this, builder), runStringfog);
+                var dexClasses = pipeline.addStage("Dex classes", () -> {
+                    onProgress(builder.getDxRunningText(), 17);
+                    builder.createDexFilesFromClasses();
+                }, runShrinker);
+                var collectLibraryDexes = pipeline.addStage("Collect library DEX files",
+                        builder::collectLibraryDexFiles, extractLibraries);
+                var mergeDexes = pipeline.addStage("Merge DEX files", () -> {
+                    onProgress("Merging DEX files...", 18);
+                    builder.getDexFilesReady();
+                }, dexClasses, collectLibraryDexes);
+                pipeline.addStage("Build APK", () -> {
+                    onProgress("Building APK...", 19);
+                    builder.buildDebugApk();
+                }, mergeDexes);
+
+                this.pipeline = pipeline;
                 if (canceled) {
                     return;
                 }
-
-                onProgress("Signing APK...", 20);
-                builder.signDebugApk();
+                pipeline.run();
                 if (canceled) {
                     return;
                 }
@@ -1228,12 +1217,18 @@ public class DesignActivity extends BaseAppCompatActivity implements View.OnClic
                 });
             } catch (zy zy) {
                 isBuildFinished = true;
-                activity.indicateCompileErrorOccurred(zy.getMessage());
+                // Killing running programs on cancellation makes their stages fail
+                if (!canceled) {
+                    activity.indicateCompileErrorOccurred(zy.getMessage());
+                }
             } catch (Throwable tr) {
                 isBuildFinished = true;
                 LogUtil.e("DesignActivity$BuildTask", "Failed to build project", tr);
-                activity.indicateCompileErrorOccurred(Log.getStackTraceString(tr));
+                if (!canceled) {
+                    activity.indicateCompileErrorOccurred(Log.getStackTraceString(tr));
+                }
             } finally {
+                activity.q.setBuildConfiguration(null);
                 activity.runOnUiThread(this::onPostExecute);
             }
         }
@@ -1260,6 +1255,25 @@ public class DesignActivity extends BaseAppCompatActivity implements View.OnClic
             });
         }
 
+        @Override
+        public void onProcessOutput(String line) {
+            lastProcessOutput = line;
+            // Posting every line would flood the UI thread with chatty programs
+            if (processOutputUpdatePending.compareAndSet(false, true)) {
+                progressText.postDelayed(() -> {
+                    processOutputUpdatePending.set(false);
+                    if (!canceled) {
+                        progressText.setText(lastProcessOutput);
+                    }
+                }, 100);
+            }
+        }
+
+        @Override
+        public boolean isBuildCanceled() {
+            return canceled;
+        }
+
         private void onPostExecute() {
             DesignActivity activity = getActivity();
             if (activity == null) return;
@@ -1279,6 +1293,10 @@ public class DesignActivity extends BaseAppCompatActivity implements View.OnClic
 
         public void cancelBuild() {
             canceled = true;
+            BuildPipeline pipeline = this.pipeline;
+            if (pipeline != null) {
+                pipeline.cancel();
+            }
             onProgress("Canceling build...", -1);
             if (isShowingNotification) {
                 notificationManager.cancel(notificationId);
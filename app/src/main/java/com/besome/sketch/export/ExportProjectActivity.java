@@ -46,9 +46,8 @@ import kellinwood.security.zipsigner.ZipSigner;
 import kellinwood.security.zipsigner.optional.CustomKeySigner;
 import kellinwood.security.zipsigner.optional.LoadKeystoreException;
 import mod.hey.studios.compiler.kotlin.KotlinCompilerBridge;
-import mod.hey.studios.project.proguard.ProguardHandler;
-import mod.hey.studios.project.stringfog.StringfogHandler;
 import mod.hey.studios.util.Helper;
+import mod.jbk.build.BuildConfigurationSnapshot;
 import mod.jbk.build.BuildProgressReceiver;
 import mod.jbk.build.BuiltInLibraries;
 import mod.jbk.build.compiler.bundle.AppBundleCompiler;
@@ -351,8 +350,7 @@ public class ExportProjectActivity extends BaseAppCompatActivity {
                     To sign an APK, you need a keystore. Use your already created one, and copy it to \
                     /Internal storage/sketchware/keystore/release_key.jks and enter the alias's password.
                     
-                    Note that this only signs your APK using signing scheme V1, to target Android 11+ for example, \
-                    use a 3rd-party tool (for now).""");
+                    Your APK gets signed using signing schemes V1, V2 and V3, so it can target Android 11+.""");
             confirmationDialog.a(R.drawable.ic_mtrl_info);
 
             confirmationDialog.b("Understood", v -> {
@@ -445,7 +443,7 @@ public class ExportProjectActivity extends BaseAppCompatActivity {
         private final WeakReference<LottieAnimationView> loading_sign_apk;
 
         private ProjectBuilder builder;
-        private boolean canceled = false;
+        private volatile boolean canceled = false;
         private boolean buildingAppBundle = false;
         private String signingKeystorePath = null;
         private char[] signingKeystorePassword = null;
@@ -480,6 +478,8 @@ public class ExportProjectActivity extends BaseAppCompatActivity {
             String sc_id = activity.get().sc_id;
 
             try {
+                BuildConfigurationSnapshot configuration = new BuildConfigurationSnapshot(sc_id);
+                project_metadata.setBuildConfiguration(configuration);
                 publishProgress("Deleting temporary files...");
                 FileUtil.deleteFile(project_metadata.projectMyscPath);
 
@@ -538,7 +538,7 @@ public class ExportProjectActivity extends BaseAppCompatActivity {
                 kCVar.c(project_metadata.resDirectoryPath + File.separator + "raw");
                 kCVar.a(project_metadata.assetsPath + File.separator + "fonts");
 
-                builder = new ProjectBuilder(this, a, project_metadata);
+                builder = new ProjectBuilder(this, a, project_metadata, configuration);
                 builder.setBuildAppBundle(buildingAppBundle);
 
                 project_metadata.a(iCVar, hCVar, eCVar, true);
@@ -559,7 +559,7 @@ public class ExportProjectActivity extends BaseAppCompatActivity {
 
                 /* Check built-in libraries */
                 publishProgress("Extracting built-in libraries...");
-                BuiltInLibraries.extractCompileAssets(this);
+                BuiltInLibraries.extractCompileAssets(builder.getUsedBuiltInLibraryNames(), this);
                 if (canceled) {
                     cancel(true);
                     return;
@@ -588,16 +588,14 @@ public class ExportProjectActivity extends BaseAppCompatActivity {
                 }
 
                 /* Encrypt Strings in classes if enabled */
-                StringfogHandler stringfogHandler = new StringfogHandler(project_metadata.sc_id);
-                stringfogHandler.start(this, builder);
+                configuration.getStringfog().start(this, builder);
                 if (canceled) {
                     cancel(true);
                     return;
                 }
 
                 /* Obfuscate classes if enabled */
-                ProguardHandler proguardHandler = new ProguardHandler(project_metadata.sc_id);
-                proguardHandler.start(this, builder);
+                configuration.getProguard().start(this, builder);
                 if (canceled) {
                     cancel(true);
                     return;
@@ -664,31 +662,27 @@ public class ExportProjectActivity extends BaseAppCompatActivity {
                         return;
                     }
 
-                    publishProgress("Aligning APK...");
-                    builder.runZipalign(builder.yq.unsignedUnalignedApkPath, builder.yq.unsignedAlignedApkPath);
-                    if (canceled) {
-                        cancel(true);
-                        return;
-                    }
-
                     publishProgress("Signing APK...");
                     String outputLocation = getCorrectResultFilename(builder.yq.releaseApkPath);
                     if (signWithTestkey) {
-                        TestkeySignBridge.signWithTestkey(builder.yq.unsignedAlignedApkPath, outputLocation);
+                        TestkeySignBridge.signWithTestkey(builder.yq.unsignedApkPath, outputLocation);
                     } else if (isResultJarSigningEnabled()) {
                         Security.addProvider(new BouncyCastleProvider());
+                        ZipSigner signer = new ZipSigner();
+                        signer.setV2SigningEnabled(true);
+                        signer.setV3SigningEnabled(true);
                         CustomKeySigner.signZip(
-                                new ZipSigner(),
+                                signer,
                                 wq.j(),
                                 signingKeystorePassword,
                                 signingAliasName,
                                 signingKeystorePassword,
                                 signingAlgorithm,
-                                builder.yq.unsignedAlignedApkPath,
+                                builder.yq.unsignedApkPath,
                                 outputLocation
                         );
                     } else {
-                        FileUtil.copyFile(builder.yq.unsignedAlignedApkPath, outputLocation);
+                        FileUtil.copyFile(builder.yq.unsignedApkPath, outputLocation);
                     }
                 }
             } catch (Throwable throwable) {
@@ -703,6 +697,8 @@ public class ExportProjectActivity extends BaseAppCompatActivity {
                 }
 
                 cancel(true);
+            } finally {
+                project_metadata.setBuildConfiguration(null);
             }
         }
 
@@ -851,5 +847,10 @@ public class ExportProjectActivity extends BaseAppCompatActivity {
         public void onProgress(String progress, int step) {
             publishProgress(progress);
         }
+
+        @Override
+        public boolean isBuildCanceled() {
+            return canceled;
+        }
     }
 }
\ No newline at end of file
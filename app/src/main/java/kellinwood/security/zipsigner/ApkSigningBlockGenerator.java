@@ -0,0 +1,385 @@
+package kellinwood.security.zipsigner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import kellinwood.zipio.ZipOutput;
+
+/**
+ * Generates an APK Signing Block with APK Signature Scheme v2 and/or v3 signatures.
+ * <p>
+ * Both schemes sign the same content digest: the APK is split into its ZIP entries, central directory
+ * and end of central directory record, each of which is cut into 1 MB chunks. The chunks of the ZIP
+ * entries are digested by a pool of worker threads while the entries are still being written through
+ * {@link #wrap(OutputStream)}, so entries never need to be read (or inflated) again.
+ */
+public class ApkSigningBlockGenerator implements ZipOutput.SigningBlockGenerator
+{
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final long APK_SIGNING_BLOCK_MAGIC_LO = 0x20676953204b5041L; // "APK Sig "
+    private static final long APK_SIGNING_BLOCK_MAGIC_HI = 0x3234206b636f6c42L; // "Block 42"
+    private static final int APK_SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
+    private static final int APK_SIGNATURE_SCHEME_V3_BLOCK_ID = 0xf05368c0;
+    private static final int STRIPPING_PROTECTION_ATTR_ID = 0xbeeff00d;
+
+    private static final int SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256 = 0x0103;
+    private static final int SIGNATURE_ECDSA_WITH_SHA256 = 0x0201;
+    private static final int SIGNATURE_DSA_WITH_SHA256 = 0x0301;
+
+    // Android 9, the first version to verify v3 signatures
+    private static final int V3_MIN_SDK_VERSION = 28;
+    private static final int V3_MAX_SDK_VERSION = Integer.MAX_VALUE;
+
+    private final KeySet keySet;
+    private final boolean v2SigningEnabled;
+    private final boolean v3SigningEnabled;
+    private final int signatureAlgorithmId;
+    private final String jcaSignatureAlgorithm;
+    private final ExecutorService executor;
+    private final int maxChunksInFlight;
+    private final List<Future<byte[]>> chunkDigests = new ArrayList<Future<byte[]>>();
+    private EntriesOutputStream entriesOutputStream;
+
+    public ApkSigningBlockGenerator( KeySet keySet, boolean v2SigningEnabled, boolean v3SigningEnabled)
+        throws GeneralSecurityException
+    {
+        this.keySet = keySet;
+        this.v2SigningEnabled = v2SigningEnabled;
+        this.v3SigningEnabled = v3SigningEnabled;
+
+        String keyAlgorithm = keySet.getPrivateKey().getAlgorithm();
+        if ("RSA".equalsIgnoreCase(keyAlgorithm)) {
+            signatureAlgorithmId = SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256;
+            jcaSignatureAlgorithm = "SHA256withRSA";
+        } else if ("EC".equalsIgnoreCase(keyAlgorithm) || "ECDSA".equalsIgnoreCase(keyAlgorithm)) {
+            signatureAlgorithmId = SIGNATURE_ECDSA_WITH_SHA256;
+            jcaSignatureAlgorithm = "SHA256withECDSA";
+        } else if ("DSA".equalsIgnoreCase(keyAlgorithm)) {
+            signatureAlgorithmId = SIGNATURE_DSA_WITH_SHA256;
+            jcaSignatureAlgorithm = "SHA256withDSA";
+        } else {
+            throw new NoSuchAlgorithmException("Unsupported key algorithm for APK Signature Scheme v2/v3: " + keyAlgorithm);
+        }
+
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        executor = Executors.newFixedThreadPool(threads);
+        // Bounds memory use to a few chunks per thread when writing is faster than digesting
+        maxChunksInFlight = threads * 2;
+    }
+
+    /**
+     * @return The value of the v1 signature file's X-Android-APK-Signed attribute, which prevents
+     * stripping the v2/v3 signatures off to downgrade verification to v1
+     */
+    public String getApkSignedAttributeValue()
+    {
+        if (v2SigningEnabled && v3SigningEnabled) return "2, 3";
+        return v2SigningEnabled ? "2" : "3";
+    }
+
+    /**
+     * Wraps the stream the ZIP entries get written to, so they're digested on the way.
+     * Writes after {@link #generate(byte[], byte[])} got called are passed through undigested.
+     */
+    public OutputStream wrap( OutputStream out)
+    {
+        entriesOutputStream = new EntriesOutputStream(out);
+        return entriesOutputStream;
+    }
+
+    @Override
+    public byte[] generate( byte[] centralDirectory, byte[] endOfCentralDirectory) throws IOException
+    {
+        if (entriesOutputStream == null) {
+            throw new IllegalStateException("The ZIP entries weren't written through wrap()");
+        }
+        entriesOutputStream.finish();
+
+        for (int offset = 0; offset < centralDirectory.length; offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, centralDirectory.length - offset);
+            chunkDigests.add(executor.submit(new ChunkDigester(centralDirectory, offset, length)));
+        }
+        chunkDigests.add(executor.submit(new ChunkDigester(endOfCentralDirectory, 0, endOfCentralDirectory.length)));
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((byte) 0x5a);
+            md.update(littleEndianInt(chunkDigests.size()));
+            for (Future<byte[]> chunkDigest : chunkDigests) {
+                md.update(getChunkDigest(chunkDigest));
+            }
+            byte[] contentDigest = md.digest();
+
+            List<byte[]> blocks = new ArrayList<byte[]>();
+            if (v2SigningEnabled) {
+                blocks.add(pair(APK_SIGNATURE_SCHEME_V2_BLOCK_ID, generateV2Block(contentDigest)));
+            }
+            if (v3SigningEnabled) {
+                blocks.add(pair(APK_SIGNATURE_SCHEME_V3_BLOCK_ID, generateV3Block(contentDigest)));
+            }
+            return generateApkSigningBlock(blocks);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to generate APK Signing Block: " + e.getMessage(), e);
+        }
+    }
+
+    /** Stops the digest workers. */
+    public void close()
+    {
+        executor.shutdownNow();
+    }
+
+    private byte[] generateV2Block( byte[] contentDigest) throws IOException, GeneralSecurityException
+    {
+        List<byte[]> additionalAttributes = Collections.emptyList();
+        if (v3SigningEnabled) {
+            // Tells v3-aware platforms to reject the APK if the v3 signature went missing
+            additionalAttributes = Collections.singletonList(
+                concat(littleEndianInt(STRIPPING_PROTECTION_ATTR_ID), littleEndianInt(3)));
+        }
+
+        byte[] signedData = concat(
+            encodeDigests(contentDigest),
+            encodeCertificates(),
+            lengthPrefixedSequence(additionalAttributes));
+
+        byte[] signer = concat(
+            lengthPrefixed(signedData),
+            encodeSignatures(signedData),
+            lengthPrefixed(keySet.getPublicKey().getPublicKey().getEncoded()));
+        return lengthPrefixedSequence(Collections.singletonList(signer));
+    }
+
+    private byte[] generateV3Block( byte[] contentDigest) throws IOException, GeneralSecurityException
+    {
+        byte[] signedData = concat(
+            encodeDigests(contentDigest),
+            encodeCertificates(),
+            littleEndianInt(V3_MIN_SDK_VERSION),
+            littleEndianInt(V3_MAX_SDK_VERSION),
+            lengthPrefixedSequence(Collections.<byte[]>emptyList()));
+
+        byte[] signer = concat(
+            lengthPrefixed(signedData),
+            littleEndianInt(V3_MIN_SDK_VERSION),
+            littleEndianInt(V3_MAX_SDK_VERSION),
+            encodeSignatures(signedData),
+            lengthPrefixed(keySet.getPublicKey().getPublicKey().getEncoded()));
+        return lengthPrefixedSequence(Collections.singletonList(signer));
+    }
+
+    private byte[] encodeDigests( byte[] contentDigest) throws IOException
+    {
+        return lengthPrefixedSequence(Collections.singletonList(
+            concat(littleEndianInt(signatureAlgorithmId), lengthPrefixed(contentDigest))));
+    }
+
+    private byte[] encodeCertificates() throws IOException, GeneralSecurityException
+    {
+        X509Certificate certificate = keySet.getPublicKey();
+        return lengthPrefixedSequence(Collections.singletonList(certificate.getEncoded()));
+    }
+
+    private byte[] encodeSignatures( byte[] signedData) throws IOException, GeneralSecurityException
+    {
+        PrivateKey privateKey = keySet.getPrivateKey();
+        Signature signature = Signature.getInstance(jcaSignatureAlgorithm);
+        signature.initSign(privateKey);
+        signature.update(signedData);
+        return lengthPrefixedSequence(Collections.singletonList(
+            concat(littleEndianInt(signatureAlgorithmId), lengthPrefixed(signature.sign()))));
+    }
+
+    /** Wraps ID-value pairs into an APK Signing Block, which goes right before the central directory. */
+    private static byte[] generateApkSigningBlock( List<byte[]> pairs)
+    {
+        int pairsSize = 0;
+        for (byte[] pair : pairs) {
+            pairsSize += pair.length;
+        }
+        // Size field excludes itself, but includes the trailing size field and magic
+        long blockSize = pairsSize + 8 + 16;
+
+        ByteBuffer block = ByteBuffer.allocate((int) blockSize + 8).order(ByteOrder.LITTLE_ENDIAN);
+        block.putLong(blockSize);
+        for (byte[] pair : pairs) {
+            block.put(pair);
+        }
+        block.putLong(blockSize);
+        block.putLong(APK_SIGNING_BLOCK_MAGIC_LO);
+        block.putLong(APK_SIGNING_BLOCK_MAGIC_HI);
+        return block.array();
+    }
+
+    private static byte[] pair( int id, byte[] value)
+    {
+        ByteBuffer pair = ByteBuffer.allocate(8 + 4 + value.length).order(ByteOrder.LITTLE_ENDIAN);
+        pair.putLong(4 + value.length);
+        pair.putInt(id);
+        pair.put(value);
+        return pair.array();
+    }
+
+    private static byte[] lengthPrefixedSequence( List<byte[]> elements) throws IOException
+    {
+        ByteArrayOutputStream sequence = new ByteArrayOutputStream();
+        for (byte[] element : elements) {
+            sequence.write(lengthPrefixed(element));
+        }
+        return lengthPrefixed(sequence.toByteArray());
+    }
+
+    private static byte[] lengthPrefixed( byte[] data) throws IOException
+    {
+        return concat(littleEndianInt(data.length), data);
+    }
+
+    private static byte[] concat( byte[]... parts) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] littleEndianInt( int value)
+    {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    private static byte[] getChunkDigest( Future<byte[]> chunkDigest) throws IOException
+    {
+        try {
+            return chunkDigest.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while digesting APK contents");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Failed to digest APK contents: " + cause.getMessage(), cause);
+        }
+    }
+
+    private static class ChunkDigester implements Callable<byte[]>
+    {
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+
+        private ChunkDigester( byte[] data, int offset, int length)
+        {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public byte[] call() throws NoSuchAlgorithmException
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((byte) 0xa5);
+            md.update(littleEndianInt(length));
+            md.update(data, offset, length);
+            return md.digest();
+        }
+    }
+
+    /**
+     * Collects written bytes into 1 MB chunks, each of which gets written to the underlying stream
+     * and handed to the digest workers once it's full.
+     */
+    private class EntriesOutputStream extends FilterOutputStream
+    {
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int chunkLength = 0;
+        private int chunksWaitedFor = 0;
+        private boolean finished = false;
+
+        private EntriesOutputStream( OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write( int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len) throws IOException
+        {
+            if (finished) {
+                out.write(b, off, len);
+                return;
+            }
+
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE - chunkLength);
+                System.arraycopy(b, off, chunk, chunkLength, n);
+                chunkLength += n;
+                off += n;
+                len -= n;
+                if (chunkLength == CHUNK_SIZE) {
+                    submitChunk();
+                }
+            }
+        }
+
+        private void submitChunk() throws IOException
+        {
+            out.write(chunk, 0, chunkLength);
+            chunkDigests.add(executor.submit(new ChunkDigester(chunk, 0, chunkLength)));
+            while (chunkDigests.size() - chunksWaitedFor > maxChunksInFlight) {
+                getChunkDigest(chunkDigests.get(chunksWaitedFor++));
+            }
+            chunk = new byte[CHUNK_SIZE];
+            chunkLength = 0;
+        }
+
+        /** Digests the last, possibly partial chunk of ZIP entries. */
+        private void finish() throws IOException
+        {
+            if (finished) return;
+            if (chunkLength > 0) {
+                submitChunk();
+            }
+            finished = true;
+            chunk = null;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!finished) {
+                // Flush whatever got buffered, e.g. when signing failed halfway
+                out.write(chunk, 0, chunkLength);
+                chunkLength = 0;
+                finished = true;
+            }
+            super.close();
+        }
+    }
+}
@@ -34,10 +34,12 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Method;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.security.DigestOutputStream;
 import java.security.GeneralSecurityException;
 import java.security.Key;
@@ -62,10 +64,17 @@ import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
 import javax.crypto.Cipher;
 import javax.crypto.EncryptedPrivateKeyInfo;
@@ -80,14 +89,15 @@ import kellinwood.zipio.ZipOutput;
 /**
  * This is a modified copy of com.android.signapk.SignApk.java.  It provides an
  * API to sign JAR files (including APKs and Zip/OTA updates) in
- * a way compatible with the mincrypt verifier, using SHA1 and RSA keys.
+ * a way compatible with the mincrypt verifier, using SHA1 (or SHA-256 with a
+ * SHA256 signature algorithm) and RSA keys.
  *
  * Please see the README.txt file in the root of this project for usage instructions.
  */
 public class ZipSigner 
 {
 
-    private boolean canceled = false;
+    private volatile boolean canceled = false;
 
     private final ProgressHelper progressHelper = new ProgressHelper();
     private ResourceAdapter resourceAdapter = new DefaultResourceAdapter();
@@ -97,12 +107,24 @@ public class ZipSigner
     private static final String CERT_SF_NAME = "META-INF/CERT.SF";
     private static final String CERT_RSA_NAME = "META-INF/CERT.RSA";
 
+    // Size of the buffers each digest worker reads and inflates entries' data with.
+    private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[][]> digestBuffers = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][] { new byte[DIGEST_BUFFER_SIZE], new byte[DIGEST_BUFFER_SIZE] };
+        }
+    };
+
     // Files matching this pattern are not copied to the output.
     private static final Pattern stripPattern =
         Pattern.compile("^META-INF/(.*)[.](SF|RSA|DSA)$");
 
     Map<String,KeySet> loadedKeys = new HashMap<String,KeySet>();
     KeySet keySet = null;
+
+    private boolean v2SigningEnabled = false;
+    private boolean v3SigningEnabled = false;
     
 
     public static final String MODE_AUTO_TESTKEY = "auto-testkey";
@@ -275,6 +297,22 @@ public class ZipSigner
         return keySet;
     }
     
+    /**
+     * Whether to add an APK Signature Scheme v2 signature besides the JAR (v1) signature.
+     * Only meant for APKs, not for app bundles or other ZIP files.
+     */
+    public void setV2SigningEnabled(boolean enabled) {
+        v2SigningEnabled = enabled;
+    }
+
+    /**
+     * Whether to add an APK Signature Scheme v3 signature besides the JAR (v1) signature.
+     * Only meant for APKs, not for app bundles or other ZIP files.
+     */
+    public void setV3SigningEnabled(boolean enabled) {
+        v3SigningEnabled = enabled;
+    }
+
     // Allow the operation to be canceled.
     public void cancel() {
         canceled = true;
@@ -390,7 +428,7 @@ public class ZipSigner
         }
     }
 
-    /** Add the SHA1 of every file to the manifest, creating it if necessary. */
+    /** Add the digest of every file to the manifest, creating it if necessary. */
     private Manifest addDigestsToManifest(Map<String,ZioEntry> entries)
         throws IOException, GeneralSecurityException 
     {
@@ -409,10 +447,8 @@ public class ZipSigner
             main.putValue("Created-By", "1.0 (Android SignApk)");
         }
 
-        // BASE64Encoder base64 = new BASE64Encoder();
-        MessageDigest md = MessageDigest.getInstance("SHA1");
-        byte[] buffer = new byte[512];
-        int num;
+        final String digestAlgorithm = getDigestAlgorithm();
+        String digestAttributeName = getDigestAttributeName( digestAlgorithm);
 
         // We sort the input entries by name, and add them to the
         // output manifest in sorted order.  We expect that the output
@@ -421,48 +457,159 @@ public class ZipSigner
         TreeMap<String, ZioEntry> byName = new TreeMap<String, ZioEntry>();
         byName.putAll( entries);
 
-        boolean debug = log.isDebugEnabled();
-        if (debug) log.debug("Manifest entries:");
+        List<ZioEntry> toDigest = new ArrayList<ZioEntry>();
         for (ZioEntry entry: byName.values()) {
-            if (canceled) break;
             String name = entry.getName();
-            if (debug) log.debug(name);
             if (!entry.isDirectory() && !name.equals(JarFile.MANIFEST_NAME) &&
                     !name.equals(CERT_SF_NAME) && !name.equals(CERT_RSA_NAME) &&
                     (stripPattern == null ||
                      !stripPattern.matcher(name).matches()))
             {
+                toDigest.add( entry);
+            }
+        }
+
+        // Entries get digested concurrently, but added to the manifest in sorted order.
+        ExecutorService executor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<byte[]>> digests = new ArrayList<Future<byte[]>>(toDigest.size());
+            for (final ZioEntry entry : toDigest) {
+                digests.add( executor.submit( () -> canceled ? null : digestEntry( entry, digestAlgorithm)));
+            }
+
+            boolean debug = log.isDebugEnabled();
+            if (debug) log.debug("Manifest entries:");
+            for (int i = 0; i < toDigest.size(); i++) {
+                if (canceled) break;
+                String name = toDigest.get(i).getName();
+                if (debug) log.debug(name);
 
                 progressHelper.progress( ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.GENERATING_MANIFEST));
-                InputStream data = entry.getInputStream();
-                while ((num = data.read(buffer)) > 0) {
-                    md.update(buffer, 0, num);
-                }
-                    
+                byte[] digest = getDigest( digests.get(i));
+                if (digest == null) break;
+
                 Attributes attr = null;
                 if (input != null) {
                     java.util.jar.Attributes inAttr = input.getAttributes(name); 
                     if (inAttr != null) attr = new Attributes( inAttr);
                 }
                 if (attr == null) attr = new Attributes();
-                attr.putValue("SHA1-Digest", Base64.encode(md.digest()));
+                attr.putValue(digestAttributeName, Base64.encode(digest));
                 output.getEntries().put(name, attr);
             }
         }
+        finally {
+            executor.shutdownNow();
+        }
 
         return output;
     }
 
+    /** The digest algorithm for the manifest and signature file, SHA-256 if the key is used with a SHA-256 signature algorithm. */
+    private String getDigestAlgorithm() {
+        String signatureAlgorithm = keySet.getSignatureAlgorithm();
+        // Signature block templates are always SHA1withRSA
+        if (keySet.getSigBlockTemplate() == null && signatureAlgorithm != null &&
+                signatureAlgorithm.toUpperCase().startsWith("SHA256")) {
+            return "SHA-256";
+        }
+        return "SHA1";
+    }
+
+    private static String getDigestAttributeName( String digestAlgorithm) {
+        return digestAlgorithm + "-Digest";
+    }
+
+    private static byte[] getDigest( Future<byte[]> digest) throws IOException, GeneralSecurityException {
+        try {
+            return digest.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException( cause);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while digesting entries");
+        }
+    }
+
+    /**
+     * Digest an entry's uncompressed data. Entries of the same ZipInput may get digested
+     * concurrently, since each reads its own view of the memory-mapped input file.
+     */
+    private static byte[] digestEntry( ZioEntry entry, String digestAlgorithm) throws IOException, GeneralSecurityException {
+        MessageDigest md = MessageDigest.getInstance( digestAlgorithm);
+        byte[][] buffers = digestBuffers.get();
+        byte[] raw = buffers[0];
+        byte[] inflated = buffers[1];
+
+        ZipInput input = entry.getZipInput();
+        if (input == null || entry.getEntryOut() != null) {
+            // The entry's data is in memory
+            InputStream data = entry.getInputStream();
+            int num;
+            while ((num = data.read( raw)) > 0) {
+                md.update( raw, 0, num);
+            }
+            return md.digest();
+        }
+
+        ByteBuffer data = entry.getDataBuffer();
+
+        Inflater inflater = entry.getCompression() == 0 ? null : new Inflater( true);
+        try {
+            while (data.hasRemaining()) {
+                int num = Math.min( raw.length, data.remaining());
+                data.get( raw, 0, num);
+
+                if (inflater == null) {
+                    md.update( raw, 0, num);
+                }
+                else {
+                    inflater.setInput( raw, 0, num);
+                    int inflatedNum;
+                    while ((inflatedNum = inflater.inflate( inflated)) > 0) {
+                        md.update( inflated, 0, inflatedNum);
+                    }
+                }
+            }
+
+            if (inflater != null && !inflater.finished()) {
+                // Inflater with nowrap=true may need an extra "dummy" byte to finish
+                inflater.setInput( new byte[1]);
+                int inflatedNum;
+                while ((inflatedNum = inflater.inflate( inflated)) > 0) {
+                    md.update( inflated, 0, inflatedNum);
+                }
+            }
+        }
+        catch (DataFormatException e) {
+            throw new ZipException( "Entry " + entry.getName() + " of " + input.getFilename() + " is corrupt: " + e.getMessage());
+        }
+        finally {
+            if (inflater != null) inflater.end();
+        }
+        return md.digest();
+    }
+
 
     /** Write the signature file to the given output stream. */
-    private void generateSignatureFile(Manifest manifest, OutputStream out)
+    private void generateSignatureFile(Manifest manifest, ApkSigningBlockGenerator signingBlockGenerator, OutputStream out)
     throws IOException, GeneralSecurityException {
         out.write( ("Signature-Version: 1.0\r\n").getBytes());
         out.write( ("Created-By: 1.0 (Android SignApk)\r\n").getBytes());
+        if (signingBlockGenerator != null) {
+            out.write( ("X-Android-APK-Signed: " + signingBlockGenerator.getApkSignedAttributeValue() + "\r\n").getBytes());
+        }
 
 
-        // BASE64Encoder base64 = new BASE64Encoder();
-        MessageDigest md = MessageDigest.getInstance("SHA1");
+        String digestAlgorithm = getDigestAlgorithm();
+        String digestAttributeName = getDigestAttributeName( digestAlgorithm);
+        MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
         PrintStream print = new PrintStream(
                 new DigestOutputStream(new ByteArrayOutputStream(), md),
                 true, "UTF-8");
@@ -471,7 +618,7 @@ public class ZipSigner
         manifest.write(print);
         print.flush();
 
-        out.write( ("SHA1-Digest-Manifest: "+ Base64.encode(md.digest()) + "\r\n\r\n").getBytes());
+        out.write( (digestAttributeName + "-Manifest: "+ Base64.encode(md.digest()) + "\r\n\r\n").getBytes());
 
         Map<String, Attributes> entries = manifest.getEntries();
         for (Map.Entry<String, Attributes> entry : entries.entrySet()) {
@@ -487,7 +634,7 @@ public class ZipSigner
             print.flush();
 
             out.write( nameEntry.getBytes());
-            out.write( ("SHA1-Digest: " +  Base64.encode(md.digest()) + "\r\n\r\n").getBytes());
+            out.write( (digestAttributeName + ": " +  Base64.encode(md.digest()) + "\r\n\r\n").getBytes());
         }
 
     }
@@ -696,9 +843,15 @@ public class ZipSigner
 
         
         ZipOutput zipOutput = null;
+        ApkSigningBlockGenerator signingBlockGenerator = null;
+        boolean signed = false;
 
         try {
 
+            if ((v2SigningEnabled || v3SigningEnabled) && !KEY_NONE.equals(keySet.getName())) {
+                signingBlockGenerator = new ApkSigningBlockGenerator( keySet, v2SigningEnabled, v3SigningEnabled);
+                outputStream = signingBlockGenerator.wrap( outputStream);
+            }
 
             zipOutput = new ZipOutput( outputStream);
 
@@ -743,7 +896,7 @@ public class ZipSigner
             ze.setTime(timestamp);
             
             ByteArrayOutputStream out = new ByteArrayOutputStream();
-            generateSignatureFile(manifest, out);
+            generateSignatureFile(manifest, signingBlockGenerator, out);
             if (canceled) return;
             byte[] sfBytes = out.toByteArray();
             if (debug) {
@@ -764,10 +917,17 @@ public class ZipSigner
             // Everything else
             copyFiles(manifest, zioEntries, zipOutput, timestamp);
             if (canceled) return;
+            signed = true;
             
         }
         finally {
-            zipOutput.close();
+            try {
+                // Only sign complete output, so a failure doesn't get covered up by another one
+                if (zipOutput != null) zipOutput.close( signed ? signingBlockGenerator : null);
+                else outputStream.close();
+            } finally {
+                if (signingBlockGenerator != null) signingBlockGenerator.close();
+            }
             if (canceled) {
                 try {
                     if (outputZipFilename != null) new File( outputZipFilename).delete();
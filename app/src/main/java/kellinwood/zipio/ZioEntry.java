@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.zip.CRC32;
 import java.util.zip.Inflater;
@@ -225,7 +226,8 @@ public class ZioEntry implements Cloneable {
     public void writeLocalEntry( ZipOutput output) throws IOException
     {
         if (data == null && dataPosition < 0 && zipInput != null) {
-            readLocalHeader();
+            // Needs to be known before localHeaderOffset refers to the output
+            dataPosition = zipInput.getLocalDataPosition( localHeaderOffset);
         }
         
         localHeaderOffset = (int)output.getFilePointer();
@@ -294,21 +296,16 @@ public class ZioEntry implements Cloneable {
         }
         else {
 
-            if (debug) log.debug(String.format("Seeking to position 0x%08x", dataPosition));
-            zipInput.seek( dataPosition);
+            ByteBuffer source = getDataBuffer();
             
-            int bufferSize = Math.min( compressedSize, 8096);
+            int bufferSize = Math.min( compressedSize, 64 * 1024);
             byte[] buffer = new byte[bufferSize];
-            long totalCount = 0;
             
-            while (totalCount != compressedSize) {
-                int numRead = zipInput.in.read( buffer, 0, (int)Math.min( compressedSize -  totalCount, bufferSize));  
-                if (numRead > 0) {
-                    output.writeBytes(buffer, 0, numRead);
-                    if (debug) log.debug(String.format("Wrote %d bytes", numRead));
-                    totalCount += numRead;
-                }
-                else throw new IllegalStateException(String.format("EOF reached while copying %s with %d bytes left to go", filename, compressedSize -  totalCount));
+            while (source.hasRemaining()) {
+                int count = Math.min( source.remaining(), bufferSize);
+                source.get( buffer, 0, count);
+                output.writeBytes(buffer, 0, count);
+                if (debug) log.debug(String.format("Wrote %d bytes", count));
             }
         }
     }		
@@ -621,6 +618,19 @@ public class ZioEntry implements Cloneable {
         return entryOut;
     }
 
+    /**
+     * Returns a read-only view of this entry's compressed data in the (memory-mapped) input file.
+     * Unlike the relative reads of {@link ZipInput}, it can be used concurrently with other entries.
+     */
+    public ByteBuffer getDataBuffer() throws IOException {
+        long position = dataPosition;
+        if (position < 0) {
+            position = zipInput.getLocalDataPosition( localHeaderOffset);
+            dataPosition = position;
+        }
+        return zipInput.getData( position, compressedSize);
+    }
+
     public ZipInput getZipInput() {
         return zipInput;
     }
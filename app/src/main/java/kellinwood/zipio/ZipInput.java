@@ -15,9 +15,14 @@
  */
 package kellinwood.zipio;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -30,7 +35,12 @@ import java.util.regex.Pattern;
 import kellinwood.logging.Logger;
 
 /**
- *
+ * Reads a ZIP file through a read-only memory mapping of it, so parsing the central directory and
+ * local headers doesn't need a system call per field, and entries' data can be accessed in place
+ * through {@link #getData(long, int)}.
+ * <p>
+ * The relative read methods share a single file pointer, so they need external synchronization
+ * when used from several threads. Buffers returned by {@link #getData(long, int)} don't.
  */
 public class ZipInput 
 {
@@ -38,7 +48,7 @@ public class ZipInput
     static Logger log = Logger.getLogger(ZipInput.class);
 
     public String inputFilename;
-    RandomAccessFile in = null;
+    ByteBuffer in = null;
     long fileLength;
     int scanIterations = 0;
 
@@ -49,8 +59,17 @@ public class ZipInput
     public ZipInput( String filename) throws IOException
     {
         this.inputFilename = filename;
-        in = new RandomAccessFile( new File( inputFilename), "r");
-        fileLength = in.length();
+        RandomAccessFile file = new RandomAccessFile( new File( inputFilename), "r");
+        try {
+            fileLength = file.length();
+            // Offsets in ZIP files without ZIP64 extensions are 32-bit anyway
+            if (fileLength > Integer.MAX_VALUE) throw new IOException( inputFilename + " is too large to be read");
+            // The mapping stays valid after the file got closed
+            in = file.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, fileLength).order( ByteOrder.LITTLE_ENDIAN);
+        }
+        finally {
+            file.close();
+        }
     }
 
 
@@ -116,17 +135,12 @@ public class ZipInput
         if (size > fileLength || size > 65536) throw new IllegalStateException( "End of central directory not found in " + inputFilename);
 
         int scanSize = (int)Math.min( fileLength, size);
-
-        byte[] scanBuf = new byte[scanSize];
-
-        in.seek( fileLength - scanSize);
-
-        in.readFully( scanBuf);
+        int scanStart = (int)fileLength - scanSize;
 
         for (int i = scanSize - 22; i >= 0; i--) {
             scanIterations += 1;
-            if (scanBuf[i] == 0x50 && scanBuf[i+1] == 0x4b && scanBuf[i+2] == 0x05 && scanBuf[i+3] == 0x06) {
-                return fileLength - scanSize + i;
+            if (in.getInt( scanStart + i) == 0x06054b50) {
+                return scanStart + i;
             }
         }
 
@@ -139,7 +153,7 @@ public class ZipInput
         try {
 
             long posEOCDR = scanForEOCDR( 256);
-            in.seek( posEOCDR);
+            seek( posEOCDR);
             centralEnd = CentralEnd.read( this);
 
             boolean debug = log.isDebugEnabled();
@@ -151,7 +165,7 @@ public class ZipInput
                 ZipListingHelper.listHeader( log);
             }
 
-            in.seek( centralEnd.centralStartOffset);            
+            seek( centralEnd.centralStartOffset);            
 
             for (int i = 0; i < centralEnd.totalCentralEntries; i++) {
                 ZioEntry entry = ZioEntry.read(this);
@@ -165,58 +179,98 @@ public class ZipInput
         }    	
     }
 
+    /** Drops the reference to the mapping, which gets unmapped once it's garbage collected. */
     public void close() {
-        if (in != null) try { in.close(); } catch( Throwable t) {}
+        in = null;
     }
 
     public long getFilePointer() throws IOException {
-        return in.getFilePointer(); 
+        return in.position(); 
     }
 
     public void seek( long position) throws IOException {
-        in.seek(position);
+        if (position < 0 || position > fileLength) throw new EOFException( String.format("Can't seek to 0x%08x in %s", position, inputFilename));
+        in.position( (int)position);
     }
 
     public byte readByte() throws IOException {
-        return in.readByte();
+        try {
+            return in.get();
+        }
+        catch (BufferUnderflowException e) {
+            throw new EOFException( inputFilename);
+        }
     }
     
     public int readInt() throws IOException{
-        int result = 0;
-        for (int i = 0; i < 4; i++) {
-            result |= (in.readUnsignedByte() << (8 * i));
+        try {
+            return in.getInt();
+        }
+        catch (BufferUnderflowException e) {
+            throw new EOFException( inputFilename);
         }
-        return result;
     }
 
     public short readShort() throws IOException {
-        short result = 0;
-        for (int i = 0; i < 2; i++) {
-            result |= (in.readUnsignedByte() << (8 * i));
+        try {
+            return in.getShort();
+        }
+        catch (BufferUnderflowException e) {
+            throw new EOFException( inputFilename);
         }
-        return result;
     }
 
     public String readString( int length) throws IOException {
-
-        byte[] buffer = new byte[length];
-        for (int i = 0; i < length; i++) {
-            buffer[i] = in.readByte();
-        }
-        return new String(buffer);
+        return new String( readBytes( length));
     }
 
     public byte[] readBytes( int length) throws IOException {
 
         byte[] buffer = new byte[length];
-        for (int i = 0; i < length; i++) {
-            buffer[i] = in.readByte();
+        try {
+            in.get( buffer);
+        }
+        catch (BufferUnderflowException e) {
+            throw new EOFException( inputFilename);
         }
         return buffer;
     }
 
     public int read( byte[] b, int offset, int length) throws IOException {
-        return in.read( b, offset, length);
+        if (length == 0) return 0;
+        int remaining = in.remaining();
+        if (remaining == 0) return -1;
+        int count = Math.min( length, remaining);
+        in.get( b, offset, count);
+        return count;
+    }
+
+    /**
+     * Returns a read-only view of {@code length} bytes at {@code position}, backed by the mapping
+     * instead of a copy. The view has its own position, so it can be read independently of the
+     * file pointer and of other views.
+     */
+    public ByteBuffer getData( long position, int length) throws IOException {
+        if (position < 0 || length < 0 || position + length > fileLength) {
+            throw new EOFException( String.format("%d bytes at 0x%08x are out of bounds of %s", length, position, inputFilename));
+        }
+        ByteBuffer data = in.duplicate();
+        data.limit( (int)position + length);
+        data.position( (int)position);
+        return data.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the position of the data following the local file header at {@code localHeaderOffset},
+     * without moving the file pointer.
+     */
+    public long getLocalDataPosition( int localHeaderOffset) throws IOException {
+        if (localHeaderOffset < 0 || localHeaderOffset + 30L > fileLength || in.getInt( localHeaderOffset) != 0x04034b50) {
+            throw new IllegalStateException( String.format("Local header not found at pos=0x%08x, file=%s", localHeaderOffset, inputFilename));
+        }
+        int fileNameLength = in.getShort( localHeaderOffset + 26) & 0xffff;
+        int extraLength = in.getShort( localHeaderOffset + 28) & 0xffff;
+        return localHeaderOffset + 30L + fileNameLength + extraLength;
     }
 
 }
@@ -15,6 +15,7 @@
  */
 package kellinwood.zipio;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -85,22 +86,61 @@ public class ZipOutput
 
     
     public void close() throws IOException
+    {
+        close( null);
+    }
+
+    /**
+     * Writes the central directory, preceded by the block {@code signingBlockGenerator} generates
+     * (if any), and closes the output.
+     */
+    public void close( SigningBlockGenerator signingBlockGenerator) throws IOException
     {
         CentralEnd centralEnd = new CentralEnd();
         
         centralEnd.centralStartOffset = (int)getFilePointer();
         centralEnd.numCentralEntries = centralEnd.totalCentralEntries = (short)entriesWritten.size();
         
-        for (ZioEntry entry : entriesWritten) {
-            entry.write( this);
+        OutputStream fileOut = out;
+        try {
+            if (signingBlockGenerator == null) {
+                for (ZioEntry entry : entriesWritten) {
+                    entry.write( this);
+                }
+
+                centralEnd.centralDirectorySize = (int)(getFilePointer() - centralEnd.centralStartOffset);
+                centralEnd.fileComment = "";
+
+                centralEnd.write( this);
+                return;
+            }
+
+            // The block is signed along with the central directory and end record, which therefore
+            // need to be known before anything past the entries can be written.
+            ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+            out = centralDirectory;
+            for (ZioEntry entry : entriesWritten) {
+                entry.write( this);
+            }
+            centralEnd.centralDirectorySize = centralDirectory.size();
+            centralEnd.fileComment = "";
+
+            ByteArrayOutputStream endOfCentralDirectory = new ByteArrayOutputStream();
+            out = endOfCentralDirectory;
+            centralEnd.write( this);
+
+            byte[] signingBlock = signingBlockGenerator.generate( centralDirectory.toByteArray(), endOfCentralDirectory.toByteArray());
+
+            out = fileOut;
+            writeBytes( signingBlock);
+            writeBytes( centralDirectory.toByteArray());
+            centralEnd.centralStartOffset += signingBlock.length;
+            centralEnd.write( this);
+        }
+        finally {
+            out = fileOut;
+            if (out != null) try { out.close(); } catch( Throwable t) {}
         }
-        
-        centralEnd.centralDirectorySize = (int)(getFilePointer() - centralEnd.centralStartOffset);
-        centralEnd.fileComment = "";
-        
-        centralEnd.write( this);
-        
-        if (out != null) try { out.close(); } catch( Throwable t) {}
     }
 
     public int getFilePointer() throws IOException {
@@ -147,6 +187,16 @@ public class ZipOutput
         filePointer += length;
     }    
 
+    /** Generates data to insert between the last entry and the central directory, i.e. an APK Signing Block. */
+    public interface SigningBlockGenerator
+    {
+        /**
+         * @param centralDirectory      The central directory that will follow the block
+         * @param endOfCentralDirectory The end of central directory record, with the central directory
+         *                              offset still pointing to where the block is going to start
+         */
+        byte[] generate( byte[] centralDirectory, byte[] endOfCentralDirectory) throws IOException;
+    }
 }
 
 
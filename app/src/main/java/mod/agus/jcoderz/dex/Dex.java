@@ -29,9 +29,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UTFDataFormatException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.AbstractList;
@@ -124,6 +126,23 @@ public final class Dex {
         }
     }
 
+    /**
+     * Creates a new dex buffer backed by a read-only memory mapping of the dex
+     * file {@code file}, so its contents don't have to be copied to the heap.
+     * Dex files inside archives can't be mapped and get read like
+     * {@link #Dex(File)} does. It is an error to modify {@code file} while
+     * the returned dex is in use.
+     */
+    public static Dex map(File file) throws IOException {
+        if (FileUtils.hasArchiveSuffix(file.getName())) {
+            return new Dex(file);
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            return new Dex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
     /**
      * It is the caller's responsibility to close {@code in}.
      */
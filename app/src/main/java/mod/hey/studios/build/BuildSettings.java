@@ -10,10 +10,12 @@ public class BuildSettings extends ProjectSettings implements Serializable {
     public static final String SETTING_ANDROID_JAR_PATH = "android_jar";
     public static final String SETTING_CLASSPATH = "classpath";
     public static final String SETTING_DEXER = "dexer";
+    public static final String SETTING_DEXER_THREADS = "dexer_threads";
     public static final String SETTING_JAVA_VERSION = "java_ver";
     public static final String SETTING_NO_HTTP_LEGACY = "no_http_legacy";
     public static final String SETTING_NO_WARNINGS = "no_warn";
     public static final String SETTING_ENABLE_LOGCAT = "enable_logcat";
+    public static final String SETTING_INCREMENTAL_BUILD = "incremental_build";
 
     public static final String SETTING_DEXER_D8 = "D8";
     public static final String SETTING_DEXER_DX = "Dx";
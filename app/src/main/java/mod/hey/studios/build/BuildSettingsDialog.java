@@ -3,7 +3,9 @@ package mod.hey.studios.build;
 import static mod.hey.studios.build.BuildSettings.SETTING_ANDROID_JAR_PATH;
 import static mod.hey.studios.build.BuildSettings.SETTING_CLASSPATH;
 import static mod.hey.studios.build.BuildSettings.SETTING_DEXER;
+import static mod.hey.studios.build.BuildSettings.SETTING_DEXER_THREADS;
 import static mod.hey.studios.build.BuildSettings.SETTING_ENABLE_LOGCAT;
+import static mod.hey.studios.build.BuildSettings.SETTING_INCREMENTAL_BUILD;
 import static mod.hey.studios.build.BuildSettings.SETTING_JAVA_VERSION;
 import static mod.hey.studios.build.BuildSettings.SETTING_NO_HTTP_LEGACY;
 import static mod.hey.studios.build.BuildSettings.SETTING_NO_WARNINGS;
@@ -27,10 +29,12 @@ public class BuildSettingsDialog {
     private static final int VIEW_ANDROIR_JAR_PATH = totalViews++;
     private static final int VIEW_CLASS_PATH = totalViews++;
     private static final int VIEW_DEXER = totalViews++;
+    private static final int VIEW_DEXER_THREADS = totalViews++;
     private static final int VIEW_JAVA_VERSION = totalViews++;
     private static final int VIEW_NO_WARNINGS = totalViews++;
     private static final int VIEW_NO_HTTP_LEGACY = totalViews++;
     private static final int VIEW_ENABLE_LOGCAT = totalViews++;
+    private static final int VIEW_INCREMENTAL_BUILD = totalViews++;
 
     private final Activity activity;
     private final BuildSettings settings;
@@ -47,7 +51,9 @@ public class BuildSettingsDialog {
         views[VIEW_ANDROIR_JAR_PATH] = binding.tilAndroidJar.getEditText();
         views[VIEW_CLASS_PATH] = binding.tilClasspath.getEditText();
         views[VIEW_DEXER] = binding.rgDexer;
+        views[VIEW_DEXER_THREADS] = binding.tilDexerThreads.getEditText();
         views[VIEW_ENABLE_LOGCAT] = binding.cbEnableLogcat;
+        views[VIEW_INCREMENTAL_BUILD] = binding.cbIncrementalBuild;
         views[VIEW_JAVA_VERSION] = binding.rgJavaVersion;
         views[VIEW_NO_HTTP_LEGACY] = binding.cbNoHttpLegacy;
         views[VIEW_NO_WARNINGS] = binding.cbNoWarnings;
@@ -61,7 +67,9 @@ public class BuildSettingsDialog {
         views[VIEW_ANDROIR_JAR_PATH].setTag(SETTING_ANDROID_JAR_PATH);
         views[VIEW_CLASS_PATH].setTag(SETTING_CLASSPATH);
         views[VIEW_DEXER].setTag(SETTING_DEXER);
+        views[VIEW_DEXER_THREADS].setTag(SETTING_DEXER_THREADS);
         views[VIEW_ENABLE_LOGCAT].setTag(SETTING_ENABLE_LOGCAT);
+        views[VIEW_INCREMENTAL_BUILD].setTag(SETTING_INCREMENTAL_BUILD);
         views[VIEW_JAVA_VERSION].setTag(SETTING_JAVA_VERSION);
         views[VIEW_NO_HTTP_LEGACY].setTag(SETTING_NO_HTTP_LEGACY);
         views[VIEW_NO_WARNINGS].setTag(SETTING_NO_WARNINGS);
@@ -72,6 +80,7 @@ public class BuildSettingsDialog {
 
         getEditText(VIEW_ANDROIR_JAR_PATH).setText(settings.getValue(SETTING_ANDROID_JAR_PATH, ""));
         getEditText(VIEW_CLASS_PATH).setText(settings.getValue(SETTING_CLASSPATH, ""));
+        getEditText(VIEW_DEXER_THREADS).setText(settings.getValue(SETTING_DEXER_THREADS, ""));
 
         setRadioGroupOptions(getRadioGroup(VIEW_DEXER), new String[]{"Dx", "D8"}, SETTING_DEXER, "Dx");
         setRadioGroupOptions(getRadioGroup(VIEW_JAVA_VERSION), BuildSettingsDialogBridge.getAvailableJavaVersions(), SETTING_JAVA_VERSION, "1.7");
@@ -79,6 +88,7 @@ public class BuildSettingsDialog {
         setCheckboxValue(getCheckbox(VIEW_NO_WARNINGS), SETTING_NO_WARNINGS, true);
         setCheckboxValue(getCheckbox(VIEW_NO_HTTP_LEGACY), SETTING_NO_HTTP_LEGACY, false);
         setCheckboxValue(getCheckbox(VIEW_ENABLE_LOGCAT), SETTING_ENABLE_LOGCAT, true);
+        setCheckboxValue(getCheckbox(VIEW_INCREMENTAL_BUILD), SETTING_INCREMENTAL_BUILD, true);
 
         MaterialAlertDialogBuilder builder = new MaterialAlertDialogBuilder(activity);
         builder.setIcon(R.drawable.ic_mtrl_tune);
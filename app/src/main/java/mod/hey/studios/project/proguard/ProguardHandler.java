@@ -5,17 +5,28 @@ import com.google.gson.Gson;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import a.a.a.ProjectBuilder;
 import pro.sketchware.utility.FileUtil;
 import mod.hey.studios.util.Helper;
 import mod.jbk.build.BuildProgressReceiver;
+import mod.jbk.util.LogUtil;
 
+/**
+ * The project's shrinking configuration. Like {@link mod.hey.studios.project.ProjectSettings}, it gets
+ * read once when constructed, so later changes to the configuration files aren't seen by this instance.
+ */
 public class ProguardHandler {
+    private static final String TAG = "ProguardHandler";
     public static String ANDROID_PROGUARD_RULES_PATH = createAndroidRules();
     public static String DEFAULT_PROGUARD_RULES_PATH = "";
     private final String config_path;
     private final String fm_config_path;
+    private final HashMap<String, String> config;
+    private final Set<String> fullModeLibraries;
 
     public ProguardHandler(String sc_id) {
         DEFAULT_PROGUARD_RULES_PATH = createDefaultRules(sc_id);
@@ -25,6 +36,39 @@ public class ProguardHandler {
         if (!FileUtil.isExistFile(config_path)) {
             FileUtil.writeFile(config_path, getDefaultConfig());
         }
+        config = readConfig();
+        fullModeLibraries = readFullModeLibraries();
+    }
+
+    private HashMap<String, String> readConfig() {
+        try {
+            HashMap<String, String> config = new Gson().fromJson(FileUtil.readFile(config_path), Helper.TYPE_STRING_MAP);
+            if (config != null) {
+                return config;
+            }
+        } catch (Exception e) {
+            LogUtil.e(TAG, "Failed to read ProGuard configuration, treating shrinking as disabled", e);
+        }
+        return new HashMap<>();
+    }
+
+    private Set<String> readFullModeLibraries() {
+        Set<String> libraries = new HashSet<>();
+        if (FileUtil.isExistFile(fm_config_path)) {
+            String configContent = FileUtil.readFile(fm_config_path);
+
+            if (!configContent.isEmpty()) {
+                try {
+                    List<String> config = new Gson().fromJson(configContent, Helper.TYPE_STRING);
+                    if (config != null) {
+                        libraries.addAll(config);
+                    }
+                } catch (Exception e) {
+                    LogUtil.e(TAG, "Failed to read ProGuard full mode libraries", e);
+                }
+            }
+        }
+        return libraries;
     }
 
     private static String createAndroidRules() {
@@ -131,113 +175,46 @@ public class ProguardHandler {
     }
 
     public boolean isDebugFilesEnabled() {
-        boolean debugFiles = true;
-        if (FileUtil.isExistFile(config_path)) {
-            try {
-                HashMap<String, String> config = new Gson().fromJson(FileUtil.readFile(config_path), Helper.TYPE_STRING_MAP);
-
-                if (!config.containsKey("debug")) return false;
-
-                String debug = config.get("debug");
-                if (debug != null) {
-                    debugFiles = debug.equals("true");
-                }
-
-            } catch (Exception e) {
-                debugFiles = false;
-            }
-        }
-
-        return debugFiles;
+        return "true".equals(config.get("debug"));
     }
 
     public boolean isShrinkingEnabled() {
-        boolean proguardEnabled = true;
-        if (FileUtil.isExistFile(config_path)) {
-            try {
-                HashMap<String, String> config = new Gson().fromJson(FileUtil.readFile(config_path), Helper.TYPE_STRING_MAP);
-
-                String enabled = config.get("enabled");
-                if (enabled == null) {
-                    proguardEnabled = false;
-                } else {
-                    proguardEnabled = enabled.equals("true");
-                }
-
-            } catch (Exception e) {
-                proguardEnabled = false;
-            }
-        }
-
-        return proguardEnabled;
+        return "true".equals(config.get("enabled"));
     }
 
     public void setProguardEnabled(boolean proguardEnabled) {
-        HashMap<String, String> config = new Gson().fromJson(FileUtil.readFile(config_path), Helper.TYPE_STRING_MAP);
         config.put("enabled", String.valueOf(proguardEnabled));
-
-        FileUtil.writeFile(config_path, new Gson().toJson(config));
+        saveConfig();
     }
 
     public boolean isR8Enabled() {
-        boolean r8Enabled = true;
-        if (FileUtil.isExistFile(config_path)) {
-            try {
-                var config = new Gson().fromJson(FileUtil.readFile(config_path), Helper.TYPE_STRING_MAP);
-
-                String enabled = config.get("r8");
-                if (enabled == null) {
-                    r8Enabled = false;
-                } else {
-                    r8Enabled = enabled.equals("true");
-                }
-
-            } catch (Exception e) {
-                r8Enabled = false;
-            }
-        }
-
-        return r8Enabled;
+        return "true".equals(config.get("r8"));
     }
 
     public void setR8Enabled(boolean r8Enabled) {
-        var config = new Gson().fromJson(FileUtil.readFile(config_path), Helper.TYPE_STRING_MAP);
         config.put("r8", String.valueOf(r8Enabled));
-
-        FileUtil.writeFile(config_path, new Gson().toJson(config));
+        saveConfig();
     }
 
     public boolean libIsProguardFMEnabled(String library) {
-        boolean enabled;
-        if (isShrinkingEnabled() && FileUtil.isExistFile(fm_config_path)) {
-            String configContent = FileUtil.readFile(fm_config_path);
-
-            if (configContent.isEmpty()) {
-                return false;
-            }
-
-            try {
-                ArrayList<String> config = new Gson().fromJson(configContent, Helper.TYPE_STRING);
-                enabled = config.contains(library);
-                return enabled;
-            } catch (Exception ignored) {
-            }
-        }
-
-        return false;
+        return isShrinkingEnabled() && fullModeLibraries.contains(library);
     }
 
     public void setDebugEnabled(boolean debugEnabled) {
-        HashMap<String, String> config = new Gson().fromJson(FileUtil.readFile(config_path), Helper.TYPE_STRING_MAP);
         config.put("debug", String.valueOf(debugEnabled));
-
-        FileUtil.writeFile(config_path, new Gson().toJson(config));
+        saveConfig();
     }
 
     public void setProguardFMLibs(ArrayList<String> fullModeLibs) {
+        fullModeLibraries.clear();
+        fullModeLibraries.addAll(fullModeLibs);
         FileUtil.writeFile(fm_config_path, new Gson().toJson(fullModeLibs));
     }
 
+    private void saveConfig() {
+        FileUtil.writeFile(config_path, new Gson().toJson(config));
+    }
+
     public void start(BuildProgressReceiver progressReceiver, ProjectBuilder builder) throws IOException {
         if (isShrinkingEnabled()) {
             if (isR8Enabled()) {
@@ -8,15 +8,34 @@ import a.a.a.ProjectBuilder;
 import pro.sketchware.utility.FileUtil;
 import mod.hey.studios.util.Helper;
 import mod.jbk.build.BuildProgressReceiver;
+import mod.jbk.util.LogUtil;
 
+/**
+ * The project's StringFog configuration, read once when constructed.
+ */
 public class StringfogHandler {
 
+    private static final String TAG = "StringfogHandler";
     private final String config_path;
+    private final HashMap<String, String> config;
 
     public StringfogHandler(String sc_id) {
         config_path = FileUtil.getExternalStorageDir().concat("/.sketchware/data/" + sc_id + "/stringfog");
 
         if (!FileUtil.isExistFile(config_path)) FileUtil.writeFile(config_path, getDefaultConfig());
+        config = readConfig();
+    }
+
+    private HashMap<String, String> readConfig() {
+        try {
+            HashMap<String, String> config = new Gson().fromJson(FileUtil.readFile(config_path), Helper.TYPE_STRING_MAP);
+            if (config != null) {
+                return config;
+            }
+        } catch (Exception e) {
+            LogUtil.e(TAG, "Failed to read StringFog configuration, treating StringFog as disabled", e);
+        }
+        return new HashMap<>();
     }
 
     private static String getDefaultConfig() {
@@ -27,29 +46,10 @@ public class StringfogHandler {
     }
 
     public boolean isStringfogEnabled() {
-        boolean enabled;
-
-        if (FileUtil.isExistFile(config_path)) {
-            HashMap<String, String> config = null;
-
-            try {
-                config = new Gson().fromJson(FileUtil.readFile(config_path), Helper.TYPE_STRING_MAP);
-            } finally {
-                Object enabledValue;
-
-                enabled = (config != null)
-                        && (enabledValue = config.get("enabled")) != null
-                        && enabledValue.equals("true");
-            }
-
-            return enabled;
-        }
-
-        return false;
+        return "true".equals(config.get("enabled"));
     }
 
     public void setStringfogEnabled(boolean enabled) {
-        HashMap<String, String> config = new Gson().fromJson(FileUtil.readFile(config_path), Helper.TYPE_STRING_MAP);
         config.put("enabled", Boolean.valueOf(enabled).toString());
 
         FileUtil.writeFile(config_path, new Gson().toJson(config));
@@ -248,6 +248,27 @@ public class CommandBlock {
         }
     }
 
+    /**
+     * @return Command blocks for XML files collected so far from generated Java code
+     */
+    public static ArrayList<HashMap<String, Object>> getXmlCommands() {
+        String path = FileUtil.getExternalStorageDir().concat("/.sketchware/temp/commands");
+        try {
+            if (FileUtil.isExistFile(path) && !FileUtil.readFile(path).isEmpty() && !FileUtil.readFile(path).equals("[]")) {
+                return new Gson().fromJson(FileUtil.readFile(path), Helper.TYPE_MAP_LIST);
+            }
+        } catch (Exception ignored) {
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Adds command blocks for XML files, as if they had been collected from generated Java code.
+     */
+    public static void addXmlCommands(ArrayList<HashMap<String, Object>> list) {
+        WTF(list);
+    }
+
     // Write Temporary File
     private static void WTF(ArrayList<HashMap<String, Object>> list) {
         String path = FileUtil.getExternalStorageDir().concat("/.sketchware/temp/commands");
@@ -0,0 +1,66 @@
+package mod.jbk.build;
+
+import mod.agus.jcoderz.editor.manage.library.locallibrary.ManageLocalLibrary;
+import mod.hey.studios.build.BuildSettings;
+import mod.hey.studios.project.ProjectSettings;
+import mod.hey.studios.project.proguard.ProguardHandler;
+import mod.hey.studios.project.stringfog.StringfogHandler;
+import mod.jbk.util.LogUtil;
+
+/**
+ * A project's build-related configuration, read once when a build starts and then shared by all of
+ * its stages.
+ * <p>
+ * Every configuration file gets read and parsed exactly once per build, and stages running in
+ * parallel all see the same configuration, even if it gets changed while the build runs. The
+ * instances held here belong to the build alone: stages must only read from them.
+ */
+public final class BuildConfigurationSnapshot {
+
+    private static final String TAG = "BuildConfigurationSnapshot";
+
+    private final String sc_id;
+    private final ProjectSettings projectSettings;
+    private final BuildSettings buildSettings;
+    private final ManageLocalLibrary localLibraries;
+    private final ProguardHandler proguard;
+    private final StringfogHandler stringfog;
+
+    public BuildConfigurationSnapshot(String sc_id) {
+        long startedAt = System.currentTimeMillis();
+        this.sc_id = sc_id;
+        projectSettings = new ProjectSettings(sc_id);
+        buildSettings = new BuildSettings(sc_id);
+        localLibraries = new ManageLocalLibrary(sc_id);
+        proguard = new ProguardHandler(sc_id);
+        stringfog = new StringfogHandler(sc_id);
+        LogUtil.d(TAG, "Reading build configuration took " + (System.currentTimeMillis() - startedAt) + " ms");
+    }
+
+    public String getProjectId() {
+        return sc_id;
+    }
+
+    public ProjectSettings getProjectSettings() {
+        return projectSettings;
+    }
+
+    public BuildSettings getBuildSettings() {
+        return buildSettings;
+    }
+
+    /**
+     * @return The project's enabled Local libraries
+     */
+    public ManageLocalLibrary getLocalLibraries() {
+        return localLibraries;
+    }
+
+    public ProguardHandler getProguard() {
+        return proguard;
+    }
+
+    public StringfogHandler getStringfog() {
+        return stringfog;
+    }
+}
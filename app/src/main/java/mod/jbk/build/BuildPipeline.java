@@ -0,0 +1,156 @@
+package mod.jbk.build;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mod.jbk.util.LogUtil;
+
+/**
+ * Runs build stages as soon as all stages they depend on have finished, so that independent stages
+ * run concurrently on a pool bounded by the number of CPU cores.
+ * <p>
+ * Stages can only depend on stages added before them, so the stages always form a DAG.
+ * Running stages are never interrupted: if a stage fails or the pipeline gets canceled, no new stages
+ * get started, and {@link #run()} returns once the running ones have finished.
+ */
+public class BuildPipeline {
+
+    private static final String TAG = "BuildPipeline";
+
+    private final List<Stage> stages = new ArrayList<>();
+    private final Object lock = new Object();
+    private ExecutorService executor;
+    private int unfinishedStages;
+    private int runningStages;
+    private Throwable failure;
+    private volatile boolean canceled;
+
+    /**
+     * @param name         The stage's name, used for logging
+     * @param dependencies Stages that must have finished successfully before this stage can run
+     */
+    public Stage addStage(String name, Action action, Stage... dependencies) {
+        Stage stage = new Stage(name, action);
+        for (Stage dependency : dependencies) {
+            if (!stages.contains(dependency)) {
+                throw new IllegalArgumentException("Stage " + name + " depends on unknown stage " + dependency.name);
+            }
+            dependency.dependents.add(stage);
+            stage.remainingDependencies++;
+        }
+        stages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Runs all stages and waits for them to finish.
+     *
+     * @throws Throwable The first failed stage's exception
+     */
+    public void run() throws Throwable {
+        long startedAt = System.currentTimeMillis();
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), stages.size()));
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        executor = Executors.newFixedThreadPool(threads, runnable ->
+                new Thread(runnable, TAG + "-" + threadNumber.getAndIncrement()));
+
+        try {
+            synchronized (lock) {
+                unfinishedStages = stages.size();
+                for (Stage stage : stages) {
+                    if (stage.remainingDependencies == 0) {
+                        submit(stage);
+                    }
+                }
+                while (runningStages > 0 || (unfinishedStages > 0 && failure == null && !canceled)) {
+                    lock.wait();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        StringBuilder timings = new StringBuilder();
+        for (Stage stage : stages) {
+            if (stage.durationMillis >= 0) {
+                timings.append("\n  ").append(stage.name).append(": ").append(stage.durationMillis).append(" ms");
+            }
+        }
+        LogUtil.d(TAG, "Ran build stages on " + threads + " threads in "
+                + (System.currentTimeMillis() - startedAt) + " ms" + (canceled ? " (canceled)" : "") + timings);
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Prevents further stages from starting. Stages which are running already will still finish.
+     */
+    public void cancel() {
+        synchronized (lock) {
+            canceled = true;
+            lock.notifyAll();
+        }
+    }
+
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    private void submit(Stage stage) {
+        runningStages++;
+        executor.execute(() -> {
+            long startedAt = System.currentTimeMillis();
+            Throwable stageFailure = null;
+            try {
+                stage.action.run();
+            } catch (Throwable e) {
+                stageFailure = e;
+            }
+            stage.durationMillis = System.currentTimeMillis() - startedAt;
+            LogUtil.d(TAG, "Stage " + stage.name + (stageFailure == null ? " finished" : " failed")
+                    + " after " + stage.durationMillis + " ms");
+            onStageFinished(stage, stageFailure);
+        });
+    }
+
+    private void onStageFinished(Stage stage, Throwable stageFailure) {
+        synchronized (lock) {
+            runningStages--;
+            unfinishedStages--;
+            if (stageFailure != null) {
+                if (failure == null) {
+                    failure = stageFailure;
+                }
+            } else if (failure == null && !canceled) {
+                for (Stage dependent : stage.dependents) {
+                    if (--dependent.remainingDependencies == 0) {
+                        submit(dependent);
+                    }
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    public interface Action {
+        void run() throws Throwable;
+    }
+
+    public static class Stage {
+        private final String name;
+        private final Action action;
+        private final List<Stage> dependents = new ArrayList<>();
+        private int remainingDependencies;
+        private long durationMillis = -1;
+
+        private Stage(String name, Action action) {
+            this.name = name;
+            this.action = action;
+        }
+    }
+}
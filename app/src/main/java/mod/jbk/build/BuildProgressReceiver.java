@@ -2,4 +2,17 @@ package mod.jbk.build;
 
 public interface BuildProgressReceiver {
     void onProgress(String progress, int step);
+
+    /**
+     * Called with every line an external program like AAPT2 outputs, on the thread reading it.
+     */
+    default void onProcessOutput(String line) {
+    }
+
+    /**
+     * @return If the build got canceled, so that work like external programs can be stopped early
+     */
+    default boolean isBuildCanceled() {
+        return false;
+    }
 }
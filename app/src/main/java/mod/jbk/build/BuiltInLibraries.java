@@ -4,19 +4,32 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 
 import a.a.a.Jp;
 import a.a.a.KB;
 import a.a.a.ProjectBuilder;
 import a.a.a.oB;
+import mod.jbk.util.LogUtil;
 import pro.sketchware.SketchApplication;
 
 public class BuiltInLibraries {
+    private static final String TAG = "BuiltInLibraries";
+
     public static final File EXTRACTED_COMPILE_ASSETS_PATH = new File(SketchApplication.getContext().getFilesDir(), "libs");
     public static final File EXTRACTED_BUILT_IN_LIBRARIES_PATH = new File(EXTRACTED_COMPILE_ASSETS_PATH, "libs");
     public static final File EXTRACTED_BUILT_IN_LIBRARY_DEX_FILES_PATH = new File(EXTRACTED_COMPILE_ASSETS_PATH, "dexs");
@@ -419,77 +432,80 @@ public class BuiltInLibraries {
         return getLibraryProguardConfiguration(libraryName).getAbsolutePath();
     }
 
-    public static void extractCompileAssets(@NonNull BuildProgressReceiver... progressReceivers) {
+    /**
+     * Extracts android.jar, built-in libraries and signing keys from assets, if they changed.
+     * The archives get extracted concurrently, as each of them has its own target.
+     *
+     * @param usedLibraries Names of the built-in libraries the build needs. If the app has an asset
+     *                      manifest, only these libraries get extracted, otherwise all of them.
+     */
+    public static void extractCompileAssets(@NonNull Collection<String> usedLibraries,
+                                            @NonNull BuildProgressReceiver... progressReceivers) {
         if (!EXTRACTED_COMPILE_ASSETS_PATH.exists()) {
             if (!EXTRACTED_COMPILE_ASSETS_PATH.mkdirs()) {
                 throw new RuntimeException(new IOException("Failed to create directory " + EXTRACTED_COMPILE_ASSETS_PATH));
             }
         }
 
-        String dexsArchiveName = "dexs.zip";
-        String libsArchiveName = "libs.zip";
-        String testkeyArchiveName = "testkey.zip";
-
-        String dexsArchivePath = new File(BuiltInLibraries.EXTRACTED_COMPILE_ASSETS_PATH, dexsArchiveName).getAbsolutePath();
-        String libsArchivePath = new File(BuiltInLibraries.EXTRACTED_COMPILE_ASSETS_PATH, libsArchiveName).getAbsolutePath();
-        String testkeyArchivePath = new File(BuiltInLibraries.EXTRACTED_COMPILE_ASSETS_PATH, testkeyArchiveName).getAbsolutePath();
-        String dexsDirectoryPath = BuiltInLibraries.EXTRACTED_BUILT_IN_LIBRARY_DEX_FILES_PATH.getAbsolutePath();
-        String libsDirectoryPath = BuiltInLibraries.EXTRACTED_BUILT_IN_LIBRARIES_PATH.getAbsolutePath();
-        String testkeyDirectoryPath = new File(BuiltInLibraries.EXTRACTED_COMPILE_ASSETS_PATH, "testkey").getAbsolutePath();
-
-        String baseAssetsPath = "libs" + File.separator;
-        oB fileUtil = new oB(false);
+        Set<String> libraryNames = new HashSet<>(usedLibraries);
+        // Entries of dexs.zip are like "material-1.0.0.dex", those of libs.zip like "material-1.0.0/res/..."
+        Predicate<String> libraryFilter = entryName -> {
+            int separator = entryName.indexOf('/');
+            String libraryName = separator >= 0 ? entryName.substring(0, separator)
+                    : entryName.endsWith(".dex") ? entryName.substring(0, entryName.length() - ".dex".length())
+                    : entryName;
+            return libraryNames.contains(libraryName);
+        };
 
-        maybeExtractAndroidJar(progressReceivers);
+        File testkeyDirectory = new File(EXTRACTED_COMPILE_ASSETS_PATH, "testkey");
+        List<Callable<Void>> extractions = List.of(
+                () -> {
+                    maybeExtractAndroidJar(progressReceivers);
+                    return null;
+                },
+                () -> {
+                    maybeExtractArchive("dexs.zip", EXTRACTED_BUILT_IN_LIBRARY_DEX_FILES_PATH, libraryFilter,
+                            "Extracting built-in libraries' DEX files...", 4, progressReceivers);
+                    return null;
+                },
+                () -> {
+                    maybeExtractArchive("libs.zip", EXTRACTED_BUILT_IN_LIBRARIES_PATH, libraryFilter,
+                            "Extracting built-in libraries' resources...", 5, progressReceivers);
+                    return null;
+                },
+                () -> {
+                    maybeExtractCoreLambdaStubsJar();
+                    return null;
+                },
+                () -> {
+                    maybeExtractArchive("testkey.zip", testkeyDirectory, null,
+                            "Extracting built-in signing keys...", 6, progressReceivers);
+                    return null;
+                }
+        );
 
-        if (ProjectBuilder.hasFileChanged(baseAssetsPath + dexsArchiveName, dexsArchivePath)) {
-            for (BuildProgressReceiver receiver : progressReceivers) {
-                receiver.onProgress("Extracting built-in libraries' DEX files...", 4);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), extractions.size())));
+        try {
+            for (Future<Void> extraction : executor.invokeAll(extractions)) {
+                extraction.get();
             }
-            /* Delete the directory */
-            fileUtil.b(dexsDirectoryPath);
-            /* Create the directories */
-            fileUtil.f(dexsDirectoryPath);
-            /* Extract dexs.zip to dexs/ */
-            new KB().a(dexsArchivePath, dexsDirectoryPath);
-        }
-        if (ProjectBuilder.hasFileChanged(baseAssetsPath + libsArchiveName, libsArchivePath)) {
-            for (BuildProgressReceiver receiver : progressReceivers) {
-                receiver.onProgress("Extracting built-in libraries' resources...", 5);
-            }
-            /* Delete the directory */
-            fileUtil.b(libsDirectoryPath);
-            /* Create the directories */
-            fileUtil.f(libsDirectoryPath);
-            /* Extract libs.zip to libs/ */
-            new KB().a(libsArchivePath, libsDirectoryPath);
-        }
-        maybeExtractCoreLambdaStubsJar();
-        if (ProjectBuilder.hasFileChanged(baseAssetsPath + testkeyArchiveName, testkeyArchivePath)) {
-            for (BuildProgressReceiver receiver : progressReceivers) {
-                receiver.onProgress("Extracting built-in signing keys...", 6);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
             }
-            /* Delete the directory */
-            fileUtil.b(testkeyDirectoryPath);
-            /* Create the directories */
-            fileUtil.f(testkeyDirectoryPath);
-            /* Extract testkey.zip to testkey/ */
-            new KB().a(testkeyArchivePath, testkeyDirectoryPath);
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdown();
         }
     }
 
     public static void maybeExtractAndroidJar(@NonNull BuildProgressReceiver... receivers) {
-        String androidJarArchiveName = "android.jar.zip";
-        String androidJarPath = new File(EXTRACTED_COMPILE_ASSETS_PATH, androidJarArchiveName).getAbsolutePath();
-        if (ProjectBuilder.hasFileChanged("libs" + File.separator + androidJarArchiveName, androidJarPath)) {
-            for (BuildProgressReceiver receiver : receivers) {
-                receiver.onProgress("Extracting built-in android.jar...", 7);
-            }
-            /* Delete android.jar */
-            new oB().c(EXTRACTED_COMPILE_ASSETS_PATH.getAbsolutePath() + File.separator + "android.jar");
-            /* Extract android.jar.zip to android.jar */
-            new KB().a(androidJarPath, EXTRACTED_COMPILE_ASSETS_PATH.getAbsolutePath());
-        }
+        maybeExtractArchive("android.jar.zip", EXTRACTED_COMPILE_ASSETS_PATH, null,
+                "Extracting built-in android.jar...", 7, receivers);
     }
 
     public static void maybeExtractCoreLambdaStubsJar() {
@@ -498,6 +514,50 @@ public class BuiltInLibraries {
         ProjectBuilder.hasFileChanged("libs" + File.separator + coreLambdaStubsJarName, coreLambdaStubsJarPath);
     }
 
+    /**
+     * Extracts an archive in assets/libs/ to {@code directory}, if it changed. With an asset manifest,
+     * only changed entries accepted by {@code entryFilter} get extracted. Otherwise, the archive gets
+     * copied to local storage to compare its size next time, and {@code directory} gets replaced entirely.
+     *
+     * @param entryFilter Decides by name which entries are needed, or null for all entries
+     */
+    private static void maybeExtractArchive(String archiveName, File directory, @Nullable Predicate<String> entryFilter,
+                                            String progress, int step, @NonNull BuildProgressReceiver... receivers) {
+        String fileInAssets = "libs" + File.separator + archiveName;
+        File archiveCopy = new File(EXTRACTED_COMPILE_ASSETS_PATH, archiveName);
+        Runnable reportProgress = () -> {
+            for (BuildProgressReceiver receiver : receivers) {
+                receiver.onProgress(progress, step);
+            }
+        };
+
+        if (CompileAssetExtractor.isInManifest(fileInAssets)) {
+            try {
+                CompileAssetExtractor.extractIfChanged(fileInAssets, directory, entryFilter, reportProgress);
+            } catch (IOException e) {
+                throw new RuntimeException("Couldn't extract " + fileInAssets, e);
+            }
+            // Only needed for comparing sizes
+            if (archiveCopy.exists() && !archiveCopy.delete()) {
+                LogUtil.w(TAG, "Failed to delete " + archiveCopy);
+            }
+        } else if (ProjectBuilder.hasFileChanged(fileInAssets, archiveCopy.getAbsolutePath())) {
+            reportProgress.run();
+            oB fileUtil = new oB(false);
+            if (directory.equals(EXTRACTED_COMPILE_ASSETS_PATH)) {
+                /* Delete the previously extracted file, like android.jar */
+                fileUtil.c(new File(directory, archiveName.substring(0, archiveName.length() - ".zip".length())).getAbsolutePath());
+            } else {
+                /* Delete the directory */
+                fileUtil.b(directory.getAbsolutePath());
+                /* Create the directories */
+                fileUtil.f(directory.getAbsolutePath());
+            }
+            /* Extract the archive */
+            new KB().a(archiveCopy.getAbsolutePath(), directory.getAbsolutePath());
+        }
+    }
+
     public static class BuiltInLibrary implements Parcelable {
         private final String name;
         private final List<String> dependencyNames;
@@ -0,0 +1,310 @@
+package mod.jbk.build;
+
+import android.content.res.AssetManager;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import mod.jbk.util.LogUtil;
+import pro.sketchware.SketchApplication;
+import pro.sketchware.utility.FileUtil;
+
+/**
+ * Extracts files the build needs, like AAPT2 and built-in libraries, from assets to local storage.
+ * <p>
+ * Whether a file changed is decided by the content hashes in {@value #MANIFEST_ASSET}, which gets
+ * generated at app build time, compared with a record of the hashes of what has been extracted before.
+ * Of ZIP archives, only entries that changed or went missing get extracted, optionally only those
+ * that are actually needed, and entries that aren't in the archive anymore get deleted.
+ * <p>
+ * Assets not in the manifest, like AAPT2 binaries of other ABIs, aren't handled here.
+ */
+public class CompileAssetExtractor {
+
+    private static final String TAG = "CompileAssetExtractor";
+    public static final String MANIFEST_ASSET = "compile-assets-manifest.json";
+    private static final File RECORD_FILE = new File(BuiltInLibraries.EXTRACTED_COMPILE_ASSETS_PATH, "extracted-compile-assets.json");
+
+    private static final Gson gson = new Gson();
+    private static final Object lock = new Object();
+    private static Manifest bundledManifest;
+    private static Manifest extractedRecord;
+
+    /**
+     * @return If {@code assetPath} is listed in the manifest, which is never the case if the app has
+     * been built without one
+     */
+    public static boolean isInManifest(String assetPath) {
+        return getBundledAsset(assetPath) != null;
+    }
+
+    /**
+     * Copies an asset to {@code target}, if it differs from what has been copied there before.
+     *
+     * @param assetPath An asset listed in the manifest, relative to assets/
+     * @return If the asset has been copied
+     */
+    public static boolean copyIfChanged(String assetPath, File target) throws IOException {
+        Asset bundled = requireBundledAsset(assetPath);
+        Asset extracted = getExtractedAsset(assetPath);
+
+        if (extracted != null && target.getAbsolutePath().equals(extracted.target)
+                && bundled.sha256.equals(extracted.sha256)
+                && target.isFile() && target.length() == bundled.size) {
+            return false;
+        }
+
+        forgetExtractedAsset(assetPath);
+        try (InputStream inputStream = getAssets().open(assetPath)) {
+            writeAtomically(inputStream, target);
+        }
+        recordExtractedAsset(assetPath, target, bundled.sha256, null);
+        return true;
+    }
+
+    /**
+     * Extracts the entries of a ZIP archive in assets to {@code directory} which differ from what has
+     * been extracted there before, or which are missing.
+     *
+     * @param assetPath  A ZIP archive listed in the manifest, relative to assets/
+     * @param onChanging Run before anything gets extracted or deleted, e.g. to report progress. May be null.
+     * @return If anything has been extracted or deleted
+     */
+    public static boolean extractIfChanged(String assetPath, File directory, Runnable onChanging) throws IOException {
+        return extractIfChanged(assetPath, directory, null, onChanging);
+    }
+
+    /**
+     * Like {@link #extractIfChanged(String, File, Runnable)}, but only extracts entries accepted by
+     * {@code entryFilter}. Entries extracted before stay extracted, even if they aren't accepted anymore.
+     *
+     * @param entryFilter Decides by name which entries are needed, or null for all entries
+     */
+    public static boolean extractIfChanged(String assetPath, File directory, Predicate<String> entryFilter, Runnable onChanging) throws IOException {
+        Asset bundled = requireBundledAsset(assetPath);
+        if (bundled.entries == null) {
+            throw new IOException("Asset " + assetPath + " isn't listed as ZIP archive in " + MANIFEST_ASSET);
+        }
+        Map<String, Entry> recordedEntries = new HashMap<>();
+        Asset extracted = getExtractedAsset(assetPath);
+        // Nothing can be reused if the archive has been extracted somewhere else before
+        if (extracted != null && directory.getAbsolutePath().equals(extracted.target) && extracted.entries != null) {
+            recordedEntries.putAll(extracted.entries);
+        }
+
+        Set<String> changedEntries = new HashSet<>();
+        for (Map.Entry<String, Entry> bundledEntry : bundled.entries.entrySet()) {
+            String name = bundledEntry.getKey();
+            if (entryFilter != null && !entryFilter.test(name)) continue;
+
+            Entry extractedEntry = recordedEntries.get(name);
+            File file = new File(directory, name);
+            if (extractedEntry == null || !bundledEntry.getValue().sha256.equals(extractedEntry.sha256)
+                    || !file.isFile() || file.length() != bundledEntry.getValue().size) {
+                changedEntries.add(name);
+            }
+        }
+        Set<String> removedEntries = new HashSet<>();
+        for (String name : recordedEntries.keySet()) {
+            if (!bundled.entries.containsKey(name)) {
+                removedEntries.add(name);
+            }
+        }
+
+        if (changedEntries.isEmpty() && removedEntries.isEmpty()) {
+            return false;
+        }
+
+        if (onChanging != null) onChanging.run();
+        long startedAt = System.currentTimeMillis();
+        // An interrupted extraction must leave changed entries unrecorded, so that they get extracted next time
+        recordedEntries.keySet().removeAll(changedEntries);
+        recordExtractedAsset(assetPath, directory, null, recordedEntries);
+
+        for (String name : removedEntries) {
+            File file = new File(directory, name);
+            if (file.exists() && !file.delete()) {
+                LogUtil.w(TAG, "Failed to delete " + file + " which isn't in " + assetPath + " anymore");
+            }
+            recordedEntries.remove(name);
+        }
+
+        String directoryPath = directory.getCanonicalPath() + File.separator;
+        int extractedEntries = 0;
+        try (ZipInputStream zipInputStream = new ZipInputStream(getAssets().open(assetPath))) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                if (entry.isDirectory() || !changedEntries.contains(entry.getName())) continue;
+
+                File file = new File(directory, entry.getName());
+                if (!file.getCanonicalPath().startsWith(directoryPath)) {
+                    throw new IOException("Entry " + entry.getName() + " of " + assetPath + " is outside of the target directory");
+                }
+                writeAtomically(zipInputStream, file);
+                recordedEntries.put(entry.getName(), bundled.entries.get(entry.getName()));
+                extractedEntries++;
+            }
+        }
+        recordExtractedAsset(assetPath, directory, null, recordedEntries);
+        if (extractedEntries != changedEntries.size()) {
+            throw new IOException("Only found " + extractedEntries + " of " + changedEntries.size()
+                    + " changed entries in " + assetPath + ", " + MANIFEST_ASSET + " is out of date");
+        }
+
+        LogUtil.d(TAG, "Extracted " + extractedEntries + " and deleted " + removedEntries.size() + " entries of "
+                + assetPath + " in " + (System.currentTimeMillis() - startedAt) + " ms");
+        return true;
+    }
+
+    private static Asset requireBundledAsset(String assetPath) throws FileNotFoundException {
+        Asset asset = getBundledAsset(assetPath);
+        if (asset == null) {
+            throw new FileNotFoundException("Asset " + assetPath + " isn't listed in " + MANIFEST_ASSET);
+        }
+        return asset;
+    }
+
+    private static Asset getBundledAsset(String assetPath) {
+        synchronized (lock) {
+            if (bundledManifest == null) {
+                try (InputStreamReader reader = new InputStreamReader(getAssets().open(MANIFEST_ASSET), StandardCharsets.UTF_8)) {
+                    bundledManifest = gson.fromJson(reader, Manifest.class);
+                } catch (FileNotFoundException e) {
+                    LogUtil.w(TAG, "App has been built without " + MANIFEST_ASSET + ", comparing assets by size");
+                } catch (IOException | JsonParseException e) {
+                    LogUtil.e(TAG, "Couldn't read " + MANIFEST_ASSET + ", comparing assets by size", e);
+                }
+                if (bundledManifest == null || bundledManifest.assets == null) {
+                    bundledManifest = new Manifest();
+                }
+            }
+            return bundledManifest.assets.get(assetPath);
+        }
+    }
+
+    private static Asset getExtractedAsset(String assetPath) {
+        synchronized (lock) {
+            return getExtractedRecord().assets.get(assetPath);
+        }
+    }
+
+    /**
+     * @param sha256  The hash of a copied asset, or null for an archive
+     * @param entries The extracted entries of an archive, or null for a copied asset
+     */
+    private static void recordExtractedAsset(String assetPath, File target, String sha256, Map<String, Entry> entries) {
+        Asset extracted = new Asset();
+        extracted.target = target.getAbsolutePath();
+        if (sha256 != null) {
+            extracted.size = target.length();
+            extracted.sha256 = sha256;
+        }
+        if (entries != null) {
+            extracted.entries = new HashMap<>(entries);
+        }
+        synchronized (lock) {
+            getExtractedRecord().assets.put(assetPath, extracted);
+            writeExtractedRecord();
+        }
+    }
+
+    /**
+     * Makes sure a copied asset is treated as changed if copying it doesn't complete.
+     */
+    private static void forgetExtractedAsset(String assetPath) {
+        synchronized (lock) {
+            if (getExtractedRecord().assets.remove(assetPath) != null) {
+                writeExtractedRecord();
+            }
+        }
+    }
+
+    private static Manifest getExtractedRecord() {
+        if (extractedRecord == null) {
+            if (RECORD_FILE.isFile()) {
+                try {
+                    extractedRecord = gson.fromJson(FileUtil.readFile(RECORD_FILE.getAbsolutePath()), Manifest.class);
+                } catch (JsonParseException e) {
+                    LogUtil.w(TAG, "Corrupt record of extracted assets, extracting everything again", e);
+                }
+            }
+            if (extractedRecord == null || extractedRecord.assets == null) {
+                extractedRecord = new Manifest();
+            }
+        }
+        return extractedRecord;
+    }
+
+    private static void writeExtractedRecord() {
+        File temporaryFile = new File(RECORD_FILE.getAbsolutePath() + ".tmp");
+        FileUtil.writeFile(temporaryFile.getAbsolutePath(), gson.toJson(extractedRecord));
+        if (!temporaryFile.renameTo(RECORD_FILE)) {
+            LogUtil.w(TAG, "Failed to save record of extracted assets");
+        }
+    }
+
+    /**
+     * Writes {@code inputStream} to a temporary file next to {@code target} first, so that an
+     * interrupted extraction never leaves a truncated file behind.
+     */
+    private static void writeAtomically(InputStream inputStream, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory " + parent);
+        }
+        File temporaryFile = new File(parent, target.getName() + ".tmp");
+        try (OutputStream outputStream = new FileOutputStream(temporaryFile)) {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        }
+        if (!temporaryFile.renameTo(target)) {
+            temporaryFile.delete();
+            throw new IOException("Failed to move extracted file to " + target);
+        }
+    }
+
+    private static AssetManager getAssets() {
+        return SketchApplication.getContext().getAssets();
+    }
+
+    private static class Manifest {
+        private Map<String, Asset> assets = new HashMap<>();
+    }
+
+    private static class Asset {
+        /**
+         * Where the asset has been extracted to, only set in the record of extracted assets.
+         */
+        private String target;
+        private long size;
+        private String sha256;
+        /**
+         * The archive's entries by name, or null if the asset isn't a ZIP archive.
+         */
+        private Map<String, Entry> entries;
+    }
+
+    private static class Entry {
+        private long size;
+        private String sha256;
+    }
+}
@@ -0,0 +1,124 @@
+package mod.jbk.build;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import mod.hilal.saif.blocks.CommandBlock;
+import mod.jbk.util.LogUtil;
+import pro.sketchware.BuildConfig;
+import pro.sketchware.utility.FileUtil;
+import pro.sketchware.utility.HashUtil;
+
+/**
+ * A content-addressed cache of generated source code. Entries are keyed by a hash of everything
+ * the code generator reads, so unchanged Activities and layouts don't have to be generated again.
+ * <p>
+ * Since Java code generation also collects command blocks for XML files as side effect
+ * (see {@link CommandBlock#CB(String)}), those get cached and restored along with the code.
+ */
+public class GeneratedCodeCache {
+
+    private static final String TAG = "GeneratedCodeCache";
+
+    private final File directory;
+    private final String fingerprint;
+    private final Gson gson = new Gson();
+    private final Set<String> usedEntries = new HashSet<>();
+    private int hits;
+    private int misses;
+
+    /**
+     * @param directory  Directory to store cache entries in
+     * @param inputFiles Files and directories read by code generators in general, such as project
+     *                   settings. Changing any of them invalidates all entries.
+     */
+    public GeneratedCodeCache(File directory, Object buildConfig, List<File> inputFiles) {
+        this.directory = directory;
+
+        StringBuilder fingerprintBuilder = new StringBuilder(BuildConfig.GIT_HASH)
+                .append('\n').append(gson.toJson(buildConfig));
+        for (File inputFile : inputFiles) {
+            fingerprintBuilder.append('\n').append(inputFile.getAbsolutePath()).append('|');
+            try {
+                if (inputFile.isDirectory()) {
+                    fingerprintBuilder.append(HashUtil.hashDirectory(inputFile));
+                } else if (inputFile.isFile()) {
+                    fingerprintBuilder.append(HashUtil.hashFile(inputFile));
+                }
+            } catch (IOException e) {
+                LogUtil.w(TAG, "Couldn't hash " + inputFile + ", not caching anything", e);
+                fingerprintBuilder.append(System.nanoTime());
+            }
+        }
+        fingerprint = fingerprintBuilder.toString();
+    }
+
+    /**
+     * Returns cached code for {@code fileName} if {@code inputs} are unchanged, or generates it.
+     *
+     * @param inputs Everything specific to this file that {@code generator} uses, must be serializable with Gson
+     */
+    public String get(String fileName, Generator generator, Object... inputs) {
+        String key = HashUtil.hashString(fingerprint + '\n' + fileName + '\n' + gson.toJson(inputs));
+        usedEntries.add(key);
+        File entryFile = new File(directory, key);
+
+        if (entryFile.exists()) {
+            try {
+                Entry entry = gson.fromJson(FileUtil.readFile(entryFile.getAbsolutePath()), Entry.class);
+                if (entry != null && entry.source != null) {
+                    if (!entry.xmlCommands.isEmpty()) {
+                        CommandBlock.addXmlCommands(entry.xmlCommands);
+                    }
+                    hits++;
+                    return entry.source;
+                }
+            } catch (JsonParseException e) {
+                LogUtil.w(TAG, "Corrupt cache entry for " + fileName, e);
+            }
+        }
+
+        int xmlCommandsBefore = CommandBlock.getXmlCommands().size();
+        Entry entry = new Entry();
+        entry.source = generator.generate();
+        ArrayList<HashMap<String, Object>> xmlCommands = CommandBlock.getXmlCommands();
+        if (xmlCommands.size() > xmlCommandsBefore) {
+            entry.xmlCommands.addAll(xmlCommands.subList(xmlCommandsBefore, xmlCommands.size()));
+        }
+        FileUtil.writeFile(entryFile.getAbsolutePath(), gson.toJson(entry));
+        misses++;
+        return entry.source;
+    }
+
+    /**
+     * Deletes all entries that haven't been used since this cache object has been created.
+     */
+    public void removeUnusedEntries() {
+        File[] entries = directory.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                if (!usedEntries.contains(entry.getName()) && !entry.delete()) {
+                    LogUtil.w(TAG, "Failed to delete unused cache entry " + entry);
+                }
+            }
+        }
+        LogUtil.d(TAG, "Reused " + hits + " generated files, generated " + misses + " files");
+    }
+
+    public interface Generator {
+        String generate();
+    }
+
+    private static class Entry {
+        private String source;
+        private final ArrayList<HashMap<String, Object>> xmlCommands = new ArrayList<>();
+    }
+}
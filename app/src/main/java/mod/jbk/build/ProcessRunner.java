@@ -0,0 +1,282 @@
+package mod.jbk.build;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import mod.jbk.util.LogUtil;
+
+/**
+ * Runs an external program like AAPT2 and waits for it to exit.
+ * <p>
+ * stdout and stderr get drained concurrently, so the program never blocks on a full pipe. Only the
+ * last {@link #MAX_KEPT_LINES} lines of each are kept, but every line gets passed to the
+ * {@link BuildProgressReceiver} as soon as it's read. The program is killed once it exceeds its
+ * timeout, or once the build gets canceled.
+ */
+public class ProcessRunner {
+
+    private static final String TAG = "ProcessRunner";
+
+    /**
+     * How many lines of stdout and of stderr each are kept for {@link Result}.
+     */
+    public static final int MAX_KEPT_LINES = 500;
+    /**
+     * Longer lines get split, so that output without line breaks can't fill up memory either.
+     */
+    private static final int MAX_LINE_LENGTH = 4096;
+    private static final long CANCELLATION_POLL_INTERVAL_MILLIS = 100;
+    /**
+     * How long to wait for the streams of a killed program to reach EOF.
+     */
+    private static final long DRAIN_TIMEOUT_MILLIS = 2000;
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(1);
+    private static final ExecutorService threads = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, TAG + "-" + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<String> command;
+    private BuildProgressReceiver progressReceiver;
+    private long timeoutMillis;
+
+    public ProcessRunner(List<String> command) {
+        this.command = new ArrayList<>(command);
+    }
+
+    /**
+     * @param progressReceiver Receives the program's output, and tells whether the build got canceled. May be null.
+     */
+    public ProcessRunner setProgressReceiver(BuildProgressReceiver progressReceiver) {
+        this.progressReceiver = progressReceiver;
+        return this;
+    }
+
+    /**
+     * @param timeoutMillis How long the program may run before it gets killed, or 0 for no limit
+     */
+    public ProcessRunner setTimeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Starts the program and waits for it to exit, or to get killed.
+     *
+     * @throws IOException If the program couldn't be started
+     */
+    public Result run() throws IOException {
+        Process process = new ProcessBuilder(command).start();
+        // Programs waiting for input would otherwise never exit
+        process.getOutputStream().close();
+
+        OutputLines stdout = new OutputLines();
+        OutputLines stderr = new OutputLines();
+        CountDownLatch exited = new CountDownLatch(1);
+        Future<?> stdoutDrainer = threads.submit(() -> drain(process.getInputStream(), stdout));
+        Future<?> stderrDrainer = threads.submit(() -> drain(process.getErrorStream(), stderr));
+        // Process.waitFor(long, TimeUnit) is only available on API level 26+
+        threads.execute(() -> {
+            try {
+                process.waitFor();
+            } catch (InterruptedException ignored) {
+            }
+            exited.countDown();
+        });
+
+        long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        boolean canceled = false;
+        boolean timedOut = false;
+        try {
+            while (!exited.await(CANCELLATION_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (progressReceiver != null && progressReceiver.isBuildCanceled()) {
+                    canceled = true;
+                    break;
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    timedOut = true;
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + command.get(0));
+        }
+
+        int exitCode = -1;
+        if (canceled || timedOut) {
+            LogUtil.w(TAG, "Killing " + command.get(0) + (canceled ? " because the build got canceled" : " after it timed out"));
+            process.destroy();
+        } else {
+            exitCode = process.exitValue();
+        }
+        awaitDrained(stdoutDrainer);
+        awaitDrained(stderrDrainer);
+
+        return new Result(exitCode, canceled, timedOut, stdout.toString(), stderr.toString());
+    }
+
+    private void drain(InputStream stream, OutputLines lines) {
+        try {
+            readLines(stream, line -> {
+                lines.add(line);
+                notifyOutput(progressReceiver, line);
+            });
+        } catch (IOException e) {
+            // Expected when the program got killed
+            LogUtil.d(TAG, "Stopped reading output of " + command.get(0) + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads {@code stream} until EOF and passes it to {@code consumer} line by line, without line
+     * terminators. Lines longer than {@link #MAX_LINE_LENGTH} get split.
+     */
+    public static void readLines(InputStream stream, Consumer<String> consumer) throws IOException {
+        try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+            char[] buffer = new char[8192];
+            StringBuilder line = new StringBuilder();
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    char c = buffer[i];
+                    if (c == '\n') {
+                        consumer.accept(line.toString());
+                        line.setLength(0);
+                    } else if (c != '\r') {
+                        line.append(c);
+                        if (line.length() >= MAX_LINE_LENGTH) {
+                            consumer.accept(line.toString());
+                            line.setLength(0);
+                        }
+                    }
+                }
+            }
+            if (line.length() > 0) {
+                consumer.accept(line.toString());
+            }
+        }
+    }
+
+    /**
+     * Passes a line of a program's output to {@code progressReceiver}, if there is one.
+     */
+    public static void notifyOutput(BuildProgressReceiver progressReceiver, String line) {
+        if (progressReceiver != null) {
+            try {
+                progressReceiver.onProcessOutput(line);
+            } catch (RuntimeException e) {
+                LogUtil.w(TAG, "Progress receiver failed to handle output", e);
+            }
+        }
+    }
+
+    private void awaitDrained(Future<?> drainer) {
+        try {
+            drainer.get(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            LogUtil.w(TAG, "Couldn't read all output of " + command.get(0), e);
+        }
+    }
+
+    /**
+     * The last {@link #MAX_KEPT_LINES} lines of a stream.
+     */
+    public static class OutputLines {
+        private final ArrayDeque<String> lines = new ArrayDeque<>();
+        private int droppedLines;
+
+        public synchronized void add(String line) {
+            if (lines.size() == MAX_KEPT_LINES) {
+                lines.removeFirst();
+                droppedLines++;
+            }
+            lines.addLast(line);
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder output = new StringBuilder();
+            if (droppedLines > 0) {
+                output.append("[").append(droppedLines).append(" earlier lines omitted]\n");
+            }
+            for (String line : lines) {
+                output.append(line).append('\n');
+            }
+            return output.toString();
+        }
+    }
+
+    public static class Result {
+        private final int exitCode;
+        private final boolean canceled;
+        private final boolean timedOut;
+        private final String stdout;
+        private final String stderr;
+
+        public Result(int exitCode, boolean canceled, boolean timedOut, String stdout, String stderr) {
+            this.exitCode = exitCode;
+            this.canceled = canceled;
+            this.timedOut = timedOut;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+
+        /**
+         * @return The program's exit code, or -1 if it got killed
+         */
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public boolean isSuccessful() {
+            return !canceled && !timedOut && exitCode == 0;
+        }
+
+        public String getStdout() {
+            return stdout;
+        }
+
+        public String getStderr() {
+            return stderr;
+        }
+
+        /**
+         * @return stderr followed by stdout, since errors usually end up in stderr
+         */
+        public String getOutput() {
+            if (stdout.isEmpty()) return stderr;
+            if (stderr.isEmpty()) return stdout;
+            return stderr + stdout;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package mod.jbk.build;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mod.hey.studios.util.Helper;
+import mod.jbk.util.LogUtil;
+import pro.sketchware.BuildConfig;
+import pro.sketchware.utility.FileUtil;
+import pro.sketchware.utility.HashUtil;
+
+/**
+ * Caches the outputs of a project's last ProGuard or R8 run, such as shrunk classes, DEX files and
+ * the mapping, keyed by a hash of everything the shrinker reads: program classes and JARs, library
+ * JARs, rule files and options. Running the shrinker again with unchanged inputs then only copies
+ * the cached outputs back.
+ * <p>
+ * Rule files are hashed by content, but files they {@code -include} themselves aren't.
+ */
+public class ShrinkerResultCache {
+
+    private static final String TAG = "ShrinkerResultCache";
+
+    private final File outputsDirectory;
+    private final File keyFile;
+    private final File fileHashesFile;
+    private final Gson gson = new Gson();
+    private final StringBuilder key;
+    private final List<File> outputs = new ArrayList<>();
+    /**
+     * Content hashes of single files by path, along with their sizes and modification times, so
+     * that large library JARs don't need to be hashed again every build.
+     */
+    private final Map<String, String> fileHashes;
+    private final Map<String, String> usedFileHashes = new HashMap<>();
+
+    /**
+     * @param directory Where to cache outputs, one per shrinker
+     */
+    public ShrinkerResultCache(File directory) {
+        outputsDirectory = new File(directory, "outputs");
+        keyFile = new File(directory, "key");
+        fileHashesFile = new File(directory, "file-hashes.json");
+        key = new StringBuilder(BuildConfig.GIT_HASH).append('\n');
+        fileHashes = readFileHashes();
+    }
+
+    /**
+     * Adds an option that affects the shrinker's outputs, like its arguments, or inline rules.
+     */
+    public ShrinkerResultCache addOption(String name, Object value) {
+        key.append(name).append('=').append(value).append('\n');
+        return this;
+    }
+
+    /**
+     * Adds files or directories the shrinker reads. Paths that don't exist are part of the key as well.
+     */
+    public ShrinkerResultCache addInputs(String kind, Collection<String> paths) throws IOException {
+        for (String path : paths) {
+            if (path.isEmpty()) continue;
+
+            File file = new File(path);
+            key.append(kind).append(':').append(file.getAbsolutePath()).append('|');
+            if (file.isDirectory()) {
+                key.append(HashUtil.hashDirectory(file));
+            } else if (file.isFile()) {
+                key.append(hashFile(file));
+            } else {
+                key.append("missing");
+            }
+            key.append('\n');
+        }
+        return this;
+    }
+
+    /**
+     * Adds a file or directory the shrinker writes. Outputs that the shrinker didn't write, like
+     * optional debug files, don't get cached.
+     */
+    public ShrinkerResultCache addOutput(File output) {
+        outputs.add(output);
+        return this;
+    }
+
+    /**
+     * Copies the cached outputs to where the shrinker would have written them, if its inputs are
+     * the same as when they were cached.
+     *
+     * @return If outputs have been restored, and the shrinker doesn't have to run
+     */
+    public boolean restore() throws IOException {
+        String hash = HashUtil.hashString(key.toString());
+        if (!keyFile.isFile() || !hash.equals(FileUtil.readFile(keyFile.getAbsolutePath()).trim())) {
+            return false;
+        }
+
+        for (File output : outputs) {
+            File cached = new File(outputsDirectory, output.getName());
+            if (cached.exists()) {
+                FileUtil.deleteFile(output.getAbsolutePath());
+                FileUtil.copyDirectory(cached, output);
+            }
+        }
+        LogUtil.d(TAG, "Inputs are unchanged, reused outputs of the last shrinker run");
+        return true;
+    }
+
+    /**
+     * Caches the outputs of a shrinker run that just succeeded, replacing what was cached before.
+     */
+    public void store() {
+        try {
+            // Outputs that are only partially copied must never be restored
+            if (keyFile.exists() && !keyFile.delete()) {
+                throw new IOException("Couldn't delete " + keyFile);
+            }
+            FileUtil.deleteFile(outputsDirectory.getAbsolutePath());
+            for (File output : outputs) {
+                if (output.exists()) {
+                    FileUtil.copyDirectory(output, new File(outputsDirectory, output.getName()));
+                }
+            }
+            FileUtil.writeFile(fileHashesFile.getAbsolutePath(), gson.toJson(usedFileHashes));
+            FileUtil.writeFile(keyFile.getAbsolutePath(), HashUtil.hashString(key.toString()));
+        } catch (IOException e) {
+            LogUtil.w(TAG, "Failed to cache shrinker outputs", e);
+        }
+    }
+
+    private String hashFile(File file) throws IOException {
+        String stamp = file.length() + "|" + file.lastModified() + "|";
+        String cached = fileHashes.get(file.getAbsolutePath());
+        String hash;
+        if (cached != null && cached.startsWith(stamp)) {
+            hash = cached.substring(stamp.length());
+        } else {
+            hash = HashUtil.hashFile(file);
+        }
+        usedFileHashes.put(file.getAbsolutePath(), stamp + hash);
+        return hash;
+    }
+
+    private Map<String, String> readFileHashes() {
+        if (fileHashesFile.isFile()) {
+            try {
+                Map<String, String> hashes = gson.fromJson(FileUtil.readFile(fileHashesFile.getAbsolutePath()), Helper.TYPE_STRING_MAP.getType());
+                if (hashes != null) {
+                    return hashes;
+                }
+            } catch (JsonParseException e) {
+                LogUtil.w(TAG, "Corrupt file hashes, hashing all files again", e);
+            }
+        }
+        return new HashMap<>();
+    }
+}
@@ -0,0 +1,706 @@
+package mod.jbk.build.apk;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import com.android.apksig.ApkSignerEngine;
+import com.android.apksig.DefaultApkSignerEngine;
+import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.util.DataSources;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import kellinwood.zipio.ZioEntry;
+import kellinwood.zipio.ZipInput;
+import mod.jbk.util.LogUtil;
+
+/**
+ * Writes an APK in a single pass. Entries get written once, already aligned the way zipalign would
+ * align them, and if a signing key is set, entries get digested for APK Signature Scheme v1 while
+ * they're being written. The v2 and v3 signatures get computed right after that over what has just
+ * been written, so the APK needs neither a zipalign nor a signing pass of its own.
+ * <p>
+ * Entries of archives (such as resources.apk and JARs) get copied as they are, without decompressing
+ * and compressing them again. Files get compressed concurrently.
+ */
+public class ApkPackager {
+
+    private static final String TAG = "ApkPackager";
+
+    private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_FILE_HEADER_SIZE = 30;
+    private static final int CENTRAL_DIRECTORY_RECORD_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final short STORED = 0;
+    private static final short DEFLATED = 8;
+    private static final short UTF_8_FLAG = 0x0800;
+
+    /**
+     * Alignment of uncompressed entries' data, so that they can be mmap'd.
+     */
+    private static final int ALIGNMENT = 4;
+    /**
+     * Alignment of uncompressed native libraries' data, so that they can be loaded directly from the APK.
+     */
+    private static final int NATIVE_LIBRARY_ALIGNMENT = 4096;
+
+    /**
+     * Every entry's timestamp, 1981-01-01 00:00:00 (in MS-DOS format), so that unchanged input
+     * results in an identical APK.
+     */
+    private static final short DOS_TIME = 0;
+    private static final short DOS_DATE = (1 << 9) | (1 << 5) | 1;
+
+    private final File outputFile;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final List<ZipInput> archives = new ArrayList<>();
+    private final List<CentralDirectoryRecord> centralDirectory = new ArrayList<>();
+    private File previousApkFile;
+    private ZipInput previousApk;
+    private final AtomicInteger reusedEntries = new AtomicInteger();
+    private PrivateKey signingKey;
+    private List<X509Certificate> signingCertificates;
+    private int minSdkVersion;
+    private OutputStream out;
+    private long position;
+
+    public ApkPackager(File outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * Adds all entries of an archive, such as the resources.apk output by AAPT2.
+     */
+    public void addArchive(File archive) throws IOException {
+        addArchiveEntries(archive, false);
+    }
+
+    /**
+     * Adds Java resources of a JAR, i.e. all entries except for .class files, JAR signature files
+     * and other files that don't belong into an APK.
+     */
+    public void addJavaResources(File jar) throws IOException {
+        addArchiveEntries(jar, true);
+    }
+
+    public void addFile(File file, String name) throws DuplicateEntryException {
+        addEntry(new FileEntry(name, file));
+    }
+
+    /**
+     * Adds native libraries of a directory that contains a subdirectory per ABI, e.g. {@code arm64-v8a/libfoo.so}.
+     */
+    public void addNativeLibraries(File directory) throws DuplicateEntryException {
+        File[] abis = directory.listFiles();
+        if (abis == null) return;
+
+        for (File abi : abis) {
+            if (!abi.isDirectory()) continue;
+
+            File[] libraries = abi.listFiles();
+            if (libraries == null) continue;
+
+            for (File library : libraries) {
+                String name = library.getName().toLowerCase();
+                if (library.isFile() && (name.endsWith(".so") || name.endsWith(".bc"))) {
+                    addFile(library, "lib/" + abi.getName() + "/" + library.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reuse compressed data of a previously packaged APK's entries if their content hasn't changed,
+     * instead of compressing files again. Entries of archives get copied as they are anyway.
+     *
+     * @param previousApk The previous APK, may not exist. It must not be the output file.
+     */
+    public void setPreviousApk(File previousApk) {
+        if (!previousApk.isFile()) return;
+
+        try {
+            ZipInput input = ZipInput.read(previousApk.getAbsolutePath());
+            archives.add(input);
+            this.previousApk = input;
+            previousApkFile = previousApk;
+        } catch (IOException e) {
+            LogUtil.w(TAG, "Couldn't read previous APK " + previousApk, e);
+        }
+    }
+
+    /**
+     * Sign the APK with APK Signature Scheme v2 and v3, and with v1 too if required by {@code minSdkVersion}.
+     * Since apksig needs Android 8.0+, the APK needs to be signed separately on older versions.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    public void setSigningKey(PrivateKey key, X509Certificate certificate, int minSdkVersion) {
+        signingKey = key;
+        signingCertificates = Collections.singletonList(certificate);
+        this.minSdkVersion = minSdkVersion;
+    }
+
+    public void write() throws IOException, GeneralSecurityException {
+        long savedTimeMillis = System.currentTimeMillis();
+        ApkSignerEngine signer = signingKey == null ? null : createSigner();
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try (RandomAccessFile file = new RandomAccessFile(outputFile, "rw")) {
+            file.setLength(0);
+            out = new BufferedOutputStream(new FileOutputStream(file.getFD()), 64 * 1024);
+            position = 0;
+            centralDirectory.clear();
+            reusedEntries.set(0);
+
+            writeEntries(executor, threads * 2, signer);
+            if (signer != null) {
+                writeV1Signature(signer);
+            }
+            out.flush();
+
+            long entriesSize = position;
+            byte[] centralDirectoryBytes = getCentralDirectory();
+            ByteBuffer endOfCentralDirectory = getEndOfCentralDirectory(entriesSize, centralDirectoryBytes.length);
+            long centralDirectoryOffset = entriesSize;
+
+            file.seek(entriesSize);
+            if (signer != null) {
+                ApkSignerEngine.OutputApkSigningBlockRequest2 request;
+                try {
+                    request = signer.outputZipSections2(DataSources.asDataSource(file, 0, entriesSize),
+                            DataSources.asDataSource(ByteBuffer.wrap(centralDirectoryBytes)),
+                            DataSources.asDataSource(endOfCentralDirectory.duplicate()));
+                } catch (ApkFormatException e) {
+                    throw new IOException("Failed to sign " + outputFile, e);
+                }
+                // apksig reads using the same file channel, which moves the file pointer
+                file.seek(entriesSize);
+                if (request != null) {
+                    int padding = request.getPaddingSizeBeforeApkSigningBlock();
+                    byte[] signingBlock = request.getApkSigningBlock();
+                    file.write(new byte[padding]);
+                    file.write(signingBlock);
+                    centralDirectoryOffset += padding + signingBlock.length;
+                    request.done();
+                }
+                signer.outputDone();
+            }
+
+            endOfCentralDirectory.putInt(16, (int) centralDirectoryOffset);
+            file.write(centralDirectoryBytes);
+            file.write(endOfCentralDirectory.array());
+            file.setLength(file.getFilePointer());
+        } finally {
+            executor.shutdownNow();
+            if (signer != null) {
+                signer.close();
+            }
+            for (ZipInput archive : archives) {
+                archive.close();
+            }
+            archives.clear();
+            previousApk = null;
+            out = null;
+        }
+
+        LogUtil.d(TAG, "Packaging " + entries.size() + " entries " + (signer == null ? "" : "and signing ")
+                + "took " + (System.currentTimeMillis() - savedTimeMillis) + " ms, reused "
+                + reusedEntries.get() + " compressed entries of the previous APK");
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private ApkSignerEngine createSigner() throws GeneralSecurityException {
+        DefaultApkSignerEngine.SignerConfig signerConfig = new DefaultApkSignerEngine.SignerConfig.Builder(
+                "CERT", signingKey, signingCertificates).build();
+        return new DefaultApkSignerEngine.Builder(Collections.singletonList(signerConfig), minSdkVersion)
+                .setV1SigningEnabled(minSdkVersion < Build.VERSION_CODES.N)
+                .setV2SigningEnabled(true)
+                .setV3SigningEnabled(true)
+                .build();
+    }
+
+    /**
+     * Prepares up to {@code window} entries ahead concurrently, while writing prepared entries in order.
+     */
+    private void writeEntries(ExecutorService executor, int window, ApkSignerEngine signer) throws IOException {
+        List<Entry> toWrite = new ArrayList<>(entries.values());
+        ArrayDeque<PendingEntry> pending = new ArrayDeque<>();
+        int submitted = 0;
+
+        for (Entry entry : toWrite) {
+            while (submitted < toWrite.size() && pending.size() < window) {
+                Entry next = toWrite.get(submitted++);
+                ApkSignerEngine.InspectJarEntryRequest request = signer == null ? null : signer.outputJarEntry(next.name);
+                pending.add(new PendingEntry(executor.submit(() -> next.prepare(request)), request));
+            }
+
+            PendingEntry prepared = pending.remove();
+            EntryData data;
+            try {
+                data = prepared.data.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Failed to prepare entry " + entry.name + " of " + entry.origin, cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while packaging " + outputFile, e);
+            }
+            writeEntry(entry.name, data);
+
+            if (prepared.request != null) {
+                prepared.request.done();
+            }
+        }
+    }
+
+    private void writeV1Signature(ApkSignerEngine signer) throws IOException, GeneralSecurityException {
+        ApkSignerEngine.OutputJarSignatureRequest request;
+        try {
+            request = signer.outputJarEntries();
+        } catch (ApkFormatException e) {
+            throw new IOException("Failed to sign " + outputFile, e);
+        }
+        if (request == null) return;
+
+        for (ApkSignerEngine.OutputJarSignatureRequest.JarEntry entry : request.getAdditionalJarEntries()) {
+            byte[] content = entry.getData();
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            writeEntry(entry.getName(), EntryData.compress(content, (int) crc.getValue()));
+
+            ApkSignerEngine.InspectJarEntryRequest inspectRequest = signer.outputJarEntry(entry.getName());
+            if (inspectRequest != null) {
+                inspectRequest.getDataSink().consume(content, 0, content.length);
+                inspectRequest.done();
+            }
+        }
+        request.done();
+    }
+
+    private void writeEntry(String name, EntryData data) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        short flags = nameBytes.length == name.length() ? 0 : UTF_8_FLAG;
+        long headerOffset = position;
+
+        int padding = 0;
+        if (data.method == STORED) {
+            int alignment = name.endsWith(".so") ? NATIVE_LIBRARY_ALIGNMENT : ALIGNMENT;
+            long dataOffset = headerOffset + LOCAL_FILE_HEADER_SIZE + nameBytes.length;
+            padding = (int) ((alignment - dataOffset % alignment) % alignment);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_FILE_HEADER_SIZE + nameBytes.length + padding)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_FILE_HEADER_SIGNATURE)
+                .putShort(data.method == STORED ? (short) 10 : (short) 20)
+                .putShort(flags)
+                .putShort(data.method)
+                .putShort(DOS_TIME)
+                .putShort(DOS_DATE)
+                .putInt(data.crc)
+                .putInt(data.data.length)
+                .putInt(data.size)
+                .putShort((short) nameBytes.length)
+                // Zero bytes in the extra field for alignment, the same way zipalign does it
+                .putShort((short) padding)
+                .put(nameBytes);
+        write(header.array());
+        write(data.data);
+
+        if (position > 0xffffffffL || centralDirectory.size() >= 0xffff) {
+            throw new IOException("Can't write " + outputFile + ", as it would need ZIP64");
+        }
+        centralDirectory.add(new CentralDirectoryRecord(nameBytes, flags, data, headerOffset));
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+        position += bytes.length;
+    }
+
+    private byte[] getCentralDirectory() {
+        int size = 0;
+        for (CentralDirectoryRecord record : centralDirectory) {
+            size += CENTRAL_DIRECTORY_RECORD_SIZE + record.name.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        for (CentralDirectoryRecord record : centralDirectory) {
+            short version = record.method == STORED ? (short) 10 : (short) 20;
+            buffer.putInt(CENTRAL_DIRECTORY_SIGNATURE)
+                    .putShort((short) 20)
+                    .putShort(version)
+                    .putShort(record.flags)
+                    .putShort(record.method)
+                    .putShort(DOS_TIME)
+                    .putShort(DOS_DATE)
+                    .putInt(record.crc)
+                    .putInt(record.compressedSize)
+                    .putInt(record.size)
+                    .putShort((short) record.name.length)
+                    // extra field length, file comment length, disk number, internal and external attributes
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putInt(0)
+                    .putInt((int) record.localHeaderOffset)
+                    .put(record.name);
+        }
+        return buffer.array();
+    }
+
+    private ByteBuffer getEndOfCentralDirectory(long centralDirectoryOffset, int centralDirectorySize) {
+        ByteBuffer buffer = ByteBuffer.allocate(END_OF_CENTRAL_DIRECTORY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) centralDirectory.size())
+                .putShort((short) centralDirectory.size())
+                .putInt(centralDirectorySize)
+                .putInt((int) centralDirectoryOffset)
+                .putShort((short) 0);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void addArchiveEntries(File archive, boolean javaResourcesOnly) throws IOException {
+        ZipInput input = ZipInput.read(archive.getAbsolutePath());
+        archives.add(input);
+        for (ZioEntry entry : input.getEntries().values()) {
+            if (entry.isDirectory()) continue;
+            if (javaResourcesOnly && !isJavaResource(entry.getName())) continue;
+
+            addEntry(new ArchiveEntry(archive, entry));
+        }
+    }
+
+    private void addEntry(Entry entry) throws DuplicateEntryException {
+        Entry existing = entries.get(entry.name);
+        if (existing != null) {
+            throw new DuplicateEntryException(entry.name, existing.origin, entry.origin);
+        }
+        entries.put(entry.name, entry);
+    }
+
+    /**
+     * The same rules as ApkBuilder's for which entries of JARs to package.
+     */
+    private static boolean isJavaResource(String name) {
+        if (name.startsWith("META-INF/")) {
+            String subName = name.substring("META-INF/".length());
+            if (subName.equals("MANIFEST.MF") || name.startsWith("META-INF/maven/")) return false;
+            if (subName.indexOf('/') == -1 && (subName.endsWith(".SF") || subName.endsWith(".RSA") || subName.endsWith(".DSA"))) {
+                return false;
+            }
+        }
+
+        String[] segments = name.split("/");
+        for (int i = 0; i < segments.length - 1; i++) {
+            String folder = segments[i];
+            if (folder.equalsIgnoreCase("CVS") || folder.equalsIgnoreCase(".svn")
+                    || folder.equalsIgnoreCase("SCCS") || folder.startsWith("_")) {
+                return false;
+            }
+        }
+
+        String fileName = segments[segments.length - 1];
+        if (fileName.isEmpty() || fileName.charAt(0) == '.' || fileName.endsWith("~")) return false;
+        if (fileName.equalsIgnoreCase("thumbs.db") || fileName.equalsIgnoreCase("picasa.ini")
+                || fileName.equalsIgnoreCase("package.html") || fileName.equalsIgnoreCase("overview.html")) {
+            return false;
+        }
+
+        int dot = fileName.lastIndexOf('.');
+        String extension = dot == -1 ? "" : fileName.substring(dot + 1).toLowerCase();
+        switch (extension) {
+            case "aidl":
+            case "rs":
+            case "fs":
+            case "rsh":
+            case "d":
+            case "java":
+            case "scala":
+            case "class":
+            case "scc":
+            case "swp":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Reads an entry's data as stored in the archive, i.e. compressed if the entry is compressed.
+     */
+    private static byte[] readRawData(ZioEntry entry, File archive) throws IOException {
+        byte[] raw = new byte[entry.getCompressedSize()];
+        try {
+            entry.getDataBuffer().get(raw);
+        } catch (IllegalStateException e) {
+            throw new ZipException("Entry " + entry.getName() + " of " + archive + " is corrupt: " + e.getMessage());
+        }
+        return raw;
+    }
+
+    public static class DuplicateEntryException extends IOException {
+        private final String entryName;
+        private final File firstOrigin;
+        private final File secondOrigin;
+
+        private DuplicateEntryException(String entryName, File firstOrigin, File secondOrigin) {
+            super("Duplicate entry " + entryName + " from " + firstOrigin + " and " + secondOrigin);
+            this.entryName = entryName;
+            this.firstOrigin = firstOrigin;
+            this.secondOrigin = secondOrigin;
+        }
+
+        public String getEntryName() {
+            return entryName;
+        }
+
+        public File getFirstOrigin() {
+            return firstOrigin;
+        }
+
+        public File getSecondOrigin() {
+            return secondOrigin;
+        }
+    }
+
+    private abstract static class Entry {
+        protected final String name;
+        /**
+         * The file this entry comes from, used for error messages
+         */
+        protected final File origin;
+
+        private Entry(String name, File origin) {
+            this.name = name;
+            this.origin = origin;
+        }
+
+        /**
+         * Reads and, if needed, compresses the entry's data. Runs concurrently with other entries.
+         *
+         * @param request The signer's request for the entry's uncompressed data, or null
+         */
+        protected abstract EntryData prepare(ApkSignerEngine.InspectJarEntryRequest request) throws IOException;
+    }
+
+    private class FileEntry extends Entry {
+        private FileEntry(String name, File file) {
+            super(name, file);
+        }
+
+        @Override
+        protected EntryData prepare(ApkSignerEngine.InspectJarEntryRequest request) throws IOException {
+            byte[] content = new byte[(int) origin.length()];
+            try (InputStream inputStream = new FileInputStream(origin)) {
+                int offset = 0;
+                int read;
+                while (offset < content.length && (read = inputStream.read(content, offset, content.length - offset)) != -1) {
+                    offset += read;
+                }
+                if (offset != content.length) {
+                    throw new IOException("File " + origin + " changed while being packaged");
+                }
+            }
+            if (request != null) {
+                request.getDataSink().consume(content, 0, content.length);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            EntryData previous = getPreviousData((int) crc.getValue(), content.length);
+            return previous != null ? previous : EntryData.compress(content, (int) crc.getValue());
+        }
+
+        /**
+         * @return The previous APK's compressed data of this entry, if it has the same CRC-32 and size
+         */
+        private EntryData getPreviousData(int crc, int size) {
+            if (previousApk == null) return null;
+
+            ZioEntry previous = previousApk.getEntry(name);
+            if (previous == null || previous.getCrc32() != crc || previous.getSize() != size
+                    || (previous.getCompression() != STORED && previous.getCompression() != DEFLATED)) {
+                return null;
+            }
+
+            try {
+                byte[] raw = readRawData(previous, previousApkFile);
+                reusedEntries.incrementAndGet();
+                return new EntryData(previous.getCompression(), crc, raw, size);
+            } catch (IOException e) {
+                LogUtil.w(TAG, "Couldn't reuse " + name + " of " + previousApkFile, e);
+                return null;
+            }
+        }
+    }
+
+    private static class ArchiveEntry extends Entry {
+        private static final byte[] DUMMY_BYTE = new byte[1];
+
+        private final ZioEntry entry;
+
+        private ArchiveEntry(File archive, ZioEntry entry) {
+            super(entry.getName(), archive);
+            this.entry = entry;
+        }
+
+        @Override
+        protected EntryData prepare(ApkSignerEngine.InspectJarEntryRequest request) throws IOException {
+            short method = entry.getCompression();
+            if (method != STORED && method != DEFLATED) {
+                throw new ZipException("Entry " + name + " of " + origin + " uses unsupported compression method " + method);
+            }
+
+            byte[] raw = readRawData(entry, origin);
+            if (request != null) {
+                if (method == STORED) {
+                    request.getDataSink().consume(raw, 0, raw.length);
+                } else {
+                    inflate(raw, request);
+                }
+            }
+            return new EntryData(method, entry.getCrc32(), raw, entry.getSize());
+        }
+
+        private void inflate(byte[] raw, ApkSignerEngine.InspectJarEntryRequest request) throws IOException {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(raw);
+                byte[] buffer = new byte[64 * 1024];
+                long inflated = 0;
+                boolean fedDummyByte = false;
+                while (!inflater.finished()) {
+                    int count = inflater.inflate(buffer);
+                    if (count == 0) {
+                        // Inflater with nowrap may need an extra byte of input to finish
+                        if (inflater.needsInput() && !fedDummyByte) {
+                            inflater.setInput(DUMMY_BYTE);
+                            fedDummyByte = true;
+                            continue;
+                        }
+                        throw new ZipException("Entry " + name + " of " + origin + " is truncated");
+                    }
+                    request.getDataSink().consume(buffer, 0, count);
+                    inflated += count;
+                }
+                if (inflated != (entry.getSize() & 0xffffffffL)) {
+                    throw new ZipException("Entry " + name + " of " + origin + " has the wrong size");
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Entry " + name + " of " + origin + " is corrupt: " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    private static class EntryData {
+        private final short method;
+        private final int crc;
+        private final byte[] data;
+        private final int size;
+
+        private EntryData(short method, int crc, byte[] data, int size) {
+            this.method = method;
+            this.crc = crc;
+            this.data = data;
+            this.size = size;
+        }
+
+        /**
+         * Deflates {@code content} if that makes it smaller, stores it uncompressed otherwise.
+         */
+        private static EntryData compress(byte[] content, int crc) {
+            if (content.length > 0) {
+                Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                try {
+                    deflater.setInput(content);
+                    deflater.finish();
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+                    byte[] buffer = new byte[64 * 1024];
+                    while (!deflater.finished()) {
+                        int count = deflater.deflate(buffer);
+                        compressed.write(buffer, 0, count);
+                        if (compressed.size() >= content.length) break;
+                    }
+                    if (deflater.finished() && compressed.size() < content.length) {
+                        return new EntryData(DEFLATED, crc, compressed.toByteArray(), content.length);
+                    }
+                } finally {
+                    deflater.end();
+                }
+            }
+            return new EntryData(STORED, crc, content, content.length);
+        }
+    }
+
+    private static class PendingEntry {
+        private final Future<EntryData> data;
+        private final ApkSignerEngine.InspectJarEntryRequest request;
+
+        private PendingEntry(Future<EntryData> data, ApkSignerEngine.InspectJarEntryRequest request) {
+            this.data = data;
+            this.request = request;
+        }
+    }
+
+    private static class CentralDirectoryRecord {
+        private final byte[] name;
+        private final short flags;
+        private final short method;
+        private final int crc;
+        private final int compressedSize;
+        private final int size;
+        private final long localHeaderOffset;
+
+        private CentralDirectoryRecord(byte[] name, short flags, EntryData data, long localHeaderOffset) {
+            this.name = name;
+            this.flags = flags;
+            method = data.method;
+            crc = data.crc;
+            compressedSize = data.data.length;
+            size = data.size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+}
@@ -10,6 +10,7 @@ import com.android.tools.r8.D8Command;
 import com.android.tools.r8.OutputMode;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
@@ -35,6 +36,21 @@ public class DexCompiler {
             throw new IllegalStateException("Can't use d8 as API level " + Build.VERSION.SDK_INT + " < 26");
         }
 
+        Collection<Path> libraryFiles = new LinkedList<>();
+        for (String jarPath : builder.getClasspath().split(":")) {
+            libraryFiles.add(Paths.get(jarPath));
+        }
+
+        if (!builder.proguard.isShrinkingEnabled() && builder.isIncrementalBuildEnabled()) {
+            try {
+                new IncrementalDexing(new File(builder.yq.buildCachePath, "d8"), new File(builder.yq.compiledClassesPath))
+                        .compile(minApiLevel, libraryFiles, new File(builder.yq.binDirectoryPath, "dex"));
+            } catch (IOException e) {
+                throw new CompilationFailedException("Couldn't dex classes incrementally: " + e.getMessage(), e);
+            }
+            return;
+        }
+
         Collection<Path> programFiles = new LinkedList<>();
         if (builder.proguard.isShrinkingEnabled()) {
             programFiles.add(Paths.get(builder.yq.proguardClassesPath));
@@ -44,11 +60,6 @@ public class DexCompiler {
             }
         }
 
-        Collection<Path> libraryFiles = new LinkedList<>();
-        for (String jarPath : builder.getClasspath().split(":")) {
-            libraryFiles.add(Paths.get(jarPath));
-        }
-
         D8.run(D8Command.builder()
                 .setMode(CompilationMode.RELEASE)
                 .setIntermediate(true)
@@ -0,0 +1,145 @@
+package mod.jbk.build.compiler.dex;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import mod.agus.jcoderz.dex.Dex;
+import mod.agus.jcoderz.dex.FieldId;
+import mod.agus.jcoderz.dex.MethodId;
+import mod.agus.jcoderz.dex.ProtoId;
+
+/**
+ * Decides which DEX files to merge together, so that no merged DEX file exceeds the limits of
+ * type, prototype, field and method IDs, and as few DEX files as possible result.
+ * <p>
+ * IDs are compared by what they refer to (e.g. {@code Lcom/example/Foo;->bar(I)V}), not by their
+ * indices, since those are only meaningful within a single DEX file. References shared by several
+ * DEX files therefore only count once.
+ * <p>
+ * DEX files get packed first-fit in the given order, so the first DEX file always ends up in the
+ * first output, which is what legacy multidex needs.
+ */
+public class DexMergePlanner {
+
+    /**
+     * How many IDs of each kind a merged DEX file may contain. IDs are unsigned shorts.
+     */
+    public static final int MAX_IDS = 0xffff;
+
+    private final int maxIds;
+
+    public DexMergePlanner() {
+        this(MAX_IDS);
+    }
+
+    public DexMergePlanner(int maxIds) {
+        this.maxIds = maxIds;
+    }
+
+    /**
+     * @return Groups of DEX files to merge, in the order they should be output
+     */
+    public List<List<Dex>> plan(List<Dex> dexes) {
+        List<Bin> bins = new ArrayList<>();
+        for (Dex dex : dexes) {
+            References references = new References(dex);
+
+            Bin target = null;
+            for (Bin bin : bins) {
+                if (bin.fits(references)) {
+                    target = bin;
+                    break;
+                }
+            }
+            if (target == null) {
+                target = new Bin();
+                bins.add(target);
+            }
+            target.add(dex, references);
+        }
+
+        List<List<Dex>> groups = new ArrayList<>(bins.size());
+        for (Bin bin : bins) {
+            groups.add(bin.dexes);
+        }
+        return groups;
+    }
+
+    private class Bin {
+        private final List<Dex> dexes = new ArrayList<>();
+        private final Set<String> types = new HashSet<>();
+        private final Set<String> protos = new HashSet<>();
+        private final Set<String> fields = new HashSet<>();
+        private final Set<String> methods = new HashSet<>();
+
+        /**
+         * An empty bin accepts any DEX file, even if it exceeds the limits on its own
+         * (then it's up to the merger to complain).
+         */
+        private boolean fits(References references) {
+            return dexes.isEmpty() || (fits(types, references.types)
+                    && fits(protos, references.protos)
+                    && fits(fields, references.fields)
+                    && fits(methods, references.methods));
+        }
+
+        private boolean fits(Set<String> merged, Collection<String> additions) {
+            if (merged.size() + additions.size() <= maxIds) return true;
+
+            int newIds = 0;
+            for (String addition : additions) {
+                if (!merged.contains(addition) && merged.size() + ++newIds > maxIds) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void add(Dex dex, References references) {
+            dexes.add(dex);
+            types.addAll(references.types);
+            protos.addAll(references.protos);
+            fields.addAll(references.fields);
+            methods.addAll(references.methods);
+        }
+    }
+
+    /**
+     * A DEX file's IDs, resolved to descriptors independent of the DEX file.
+     */
+    private static class References {
+        private final List<String> types;
+        private final List<String> protos;
+        private final List<String> fields;
+        private final List<String> methods;
+
+        private References(Dex dex) {
+            List<String> strings = new ArrayList<>(dex.strings());
+            types = new ArrayList<>(dex.typeNames());
+
+            protos = new ArrayList<>(dex.protoIds().size());
+            for (ProtoId protoId : dex.protoIds()) {
+                StringBuilder descriptor = new StringBuilder("(");
+                for (short parameterType : dex.readTypeList(protoId.getParametersOffset()).getTypes()) {
+                    descriptor.append(types.get(parameterType & 0xffff));
+                }
+                protos.add(descriptor.append(')').append(types.get(protoId.getReturnTypeIndex())).toString());
+            }
+
+            fields = new ArrayList<>(dex.fieldIds().size());
+            for (FieldId fieldId : dex.fieldIds()) {
+                fields.add(types.get(fieldId.getDeclaringClassIndex()) + "->" + strings.get(fieldId.getNameIndex())
+                        + ":" + types.get(fieldId.getTypeIndex()));
+            }
+
+            methods = new ArrayList<>(dex.methodIds().size());
+            for (MethodId methodId : dex.methodIds()) {
+                methods.add(types.get(methodId.getDeclaringClassIndex()) + "->" + strings.get(methodId.getNameIndex())
+                        + protos.get(methodId.getProtoIndex()));
+            }
+        }
+    }
+}
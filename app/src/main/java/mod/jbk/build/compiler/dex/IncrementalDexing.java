@@ -0,0 +1,242 @@
+package mod.jbk.build.compiler.dex;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import com.android.tools.r8.CompilationFailedException;
+import com.android.tools.r8.CompilationMode;
+import com.android.tools.r8.D8;
+import com.android.tools.r8.D8Command;
+import com.android.tools.r8.OutputMode;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+
+import mod.jbk.build.compiler.java.ClassFileInfo;
+import mod.jbk.build.compiler.java.IncrementalJavaCompilation;
+import mod.jbk.util.LogUtil;
+import pro.sketchware.utility.FileUtil;
+import pro.sketchware.utility.HashUtil;
+
+/**
+ * Dexes .class files with D8 to one intermediate DEX file per class, which are kept between builds,
+ * so that only changed classes need to be dexed again. The intermediates then get merged by D8.
+ */
+@TargetApi(Build.VERSION_CODES.O)
+public class IncrementalDexing {
+
+    private static final String TAG = "IncrementalDexing";
+
+    private final File classesDirectory;
+    private final File intermediatesDirectory;
+    private final File temporaryDirectory;
+    private final File stateFile;
+
+    /**
+     * @param cacheDirectory   Directory to keep intermediate DEX files and state in
+     * @param classesDirectory Directory with all .class files to dex
+     */
+    public IncrementalDexing(File cacheDirectory, File classesDirectory) {
+        this.classesDirectory = classesDirectory;
+        intermediatesDirectory = new File(cacheDirectory, "intermediates");
+        temporaryDirectory = new File(cacheDirectory, "tmp");
+        stateFile = new File(cacheDirectory, "state.json");
+    }
+
+    /**
+     * Dexes changed classes, then merges all classes' intermediate DEX files into {@code outputDirectory}.
+     */
+    public void compile(int minApiLevel, Collection<Path> libraryFiles, File outputDirectory) throws CompilationFailedException, IOException {
+        StringJoiner classpath = new StringJoiner(":");
+        for (Path libraryFile : libraryFiles) {
+            classpath.add(libraryFile.toAbsolutePath().toString());
+        }
+        // Only fingerprints files, as directories such as the compiled classes one get recreated every build
+        String configurationHash = HashUtil.hashString(minApiLevel + "\n" + IncrementalJavaCompilation.fingerprintClasspath(classpath.toString()));
+
+        State state = readState();
+        if (state == null || !configurationHash.equals(state.configurationHash)) {
+            LogUtil.d(TAG, "No usable state of a previous build, dexing all classes");
+            invalidate();
+            FileUtil.deleteFile(intermediatesDirectory.getAbsolutePath());
+            state = new State();
+            state.configurationHash = configurationHash;
+        }
+
+        String rootPath = classesDirectory.getAbsolutePath();
+        Map<String, String> hashes = new HashMap<>();
+        for (File classFile : FileUtil.listFilesRecursively(classesDirectory, ".class")) {
+            String path = classFile.getAbsolutePath();
+            String name = path.substring(rootPath.length() + 1, path.length() - ".class".length()).replace(File.separatorChar, '/');
+            hashes.put(name, HashUtil.hashFile(classFile));
+        }
+
+        Set<String> dirty = new HashSet<>();
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            if (!entry.getValue().equals(state.classes.get(entry.getKey()))) {
+                dirty.add(entry.getKey());
+            }
+        }
+        Set<String> removed = new HashSet<>(state.classes.keySet());
+        removed.removeAll(hashes.keySet());
+
+        if (!dirty.isEmpty() && !state.unexpectedOutputs.isEmpty()) {
+            // Can't tell which classes D8 generated those for, so start over
+            LogUtil.d(TAG, "Previous dexing generated " + state.unexpectedOutputs + ", dexing all classes");
+            invalidate();
+            FileUtil.deleteFile(intermediatesDirectory.getAbsolutePath());
+            state.classes.clear();
+            state.unexpectedOutputs.clear();
+            dirty.addAll(hashes.keySet());
+        } else if (!dirty.isEmpty() || !removed.isEmpty()) {
+            addSubtypes(dirty, removed, hashes.keySet());
+        }
+
+        // The state on disk must never list classes whose intermediates are getting deleted, in case the build gets killed
+        state.classes.keySet().removeAll(dirty);
+        state.classes.keySet().removeAll(removed);
+        if (!dirty.isEmpty() || !removed.isEmpty()) {
+            FileUtil.writeFile(stateFile.getAbsolutePath(), new Gson().toJson(state));
+        }
+        for (String name : dirty) {
+            new File(intermediatesDirectory, name + ".dex").delete();
+        }
+        for (String name : removed) {
+            new File(intermediatesDirectory, name + ".dex").delete();
+        }
+
+        if (!dirty.isEmpty()) {
+            LogUtil.d(TAG, "Dexing " + dirty.size() + " of " + hashes.size() + " classes");
+            try {
+                dexClasses(dirty, minApiLevel, libraryFiles, state);
+            } catch (CompilationFailedException | IOException | RuntimeException e) {
+                invalidate();
+                throw e;
+            }
+            for (String name : dirty) {
+                state.classes.put(name, hashes.get(name));
+            }
+        }
+        FileUtil.writeFile(stateFile.getAbsolutePath(), new Gson().toJson(state));
+
+        List<Path> intermediates = new ArrayList<>();
+        for (File intermediate : FileUtil.listFilesRecursively(intermediatesDirectory, ".dex")) {
+            intermediates.add(intermediate.toPath());
+        }
+        D8.run(D8Command.builder()
+                .setMode(CompilationMode.RELEASE)
+                .setIntermediate(true)
+                .setMinApiLevel(minApiLevel)
+                .addLibraryFiles(libraryFiles)
+                .setOutput(outputDirectory.toPath(), OutputMode.DexIndexed)
+                .addProgramFiles(intermediates)
+                .build());
+    }
+
+    /**
+     * Desugaring default and static interface methods copies code into implementing classes,
+     * so subtypes of changed classes need to be dexed again as well.
+     */
+    private void addSubtypes(Set<String> dirty, Set<String> removed, Set<String> allClasses) throws IOException {
+        Map<String, List<String>> supertypes = new HashMap<>();
+        for (String name : allClasses) {
+            if (dirty.contains(name)) continue;
+
+            ClassFileInfo info = ClassFileInfo.read(new File(classesDirectory, name + ".class"));
+            List<String> classSupertypes = new ArrayList<>(info.interfaces);
+            if (info.superName != null) {
+                classSupertypes.add(info.superName);
+            }
+            supertypes.put(name, classSupertypes);
+        }
+
+        Set<String> changedTypes = new HashSet<>(dirty);
+        changedTypes.addAll(removed);
+        boolean foundSubtypes;
+        do {
+            foundSubtypes = false;
+            for (Map.Entry<String, List<String>> entry : supertypes.entrySet()) {
+                if (!dirty.contains(entry.getKey()) && entry.getValue().stream().anyMatch(changedTypes::contains)) {
+                    dirty.add(entry.getKey());
+                    changedTypes.add(entry.getKey());
+                    foundSubtypes = true;
+                }
+            }
+        } while (foundSubtypes);
+    }
+
+    private void dexClasses(Set<String> classes, int minApiLevel, Collection<Path> libraryFiles, State state) throws CompilationFailedException, IOException {
+        FileUtil.deleteFile(temporaryDirectory.getAbsolutePath());
+        FileUtil.makeDir(temporaryDirectory.getAbsolutePath());
+
+        List<Path> programFiles = new ArrayList<>(classes.size());
+        for (String name : classes) {
+            programFiles.add(new File(classesDirectory, name + ".class").toPath());
+        }
+        D8.run(D8Command.builder()
+                .setMode(CompilationMode.RELEASE)
+                .setIntermediate(true)
+                .setMinApiLevel(minApiLevel)
+                .addLibraryFiles(libraryFiles)
+                // Unchanged classes, needed for desugaring
+                .addClasspathFiles(classesDirectory.toPath())
+                .setOutput(temporaryDirectory.toPath(), OutputMode.DexFilePerClassFile)
+                .addProgramFiles(programFiles)
+                .build());
+
+        String rootPath = temporaryDirectory.getAbsolutePath();
+        for (File output : FileUtil.listFilesRecursively(temporaryDirectory, ".dex")) {
+            String path = output.getAbsolutePath();
+            String name = path.substring(rootPath.length() + 1, path.length() - ".dex".length()).replace(File.separatorChar, '/');
+            if (!classes.contains(name)) {
+                state.unexpectedOutputs.add(name);
+            }
+
+            File intermediate = new File(intermediatesDirectory, name + ".dex");
+            FileUtil.makeDir(intermediate.getParent());
+            if (!output.renameTo(intermediate)) {
+                throw new IOException("Couldn't move " + output + " to " + intermediate);
+            }
+        }
+        for (String name : classes) {
+            if (!new File(intermediatesDirectory, name + ".dex").exists()) {
+                throw new IOException("D8 didn't output an intermediate DEX file for " + name);
+            }
+        }
+        FileUtil.deleteFile(temporaryDirectory.getAbsolutePath());
+    }
+
+    private void invalidate() {
+        if (stateFile.exists() && !stateFile.delete()) {
+            LogUtil.w(TAG, "Failed to delete " + stateFile);
+        }
+    }
+
+    private State readState() {
+        if (!stateFile.exists()) return null;
+
+        try {
+            return new Gson().fromJson(FileUtil.readFile(stateFile.getAbsolutePath()), State.class);
+        } catch (JsonParseException e) {
+            LogUtil.w(TAG, "Couldn't read state of the last build", e);
+            return null;
+        }
+    }
+
+    private static class State {
+        private String configurationHash;
+        private final HashMap<String, String> classes = new HashMap<>();
+        private final HashSet<String> unexpectedOutputs = new HashSet<>();
+    }
+}
@@ -0,0 +1,205 @@
+package mod.jbk.build.compiler.java;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of a compiled .class file that incremental compilation needs: the class's name, its
+ * supertypes, the source file it was compiled from and every other class it references.
+ */
+public class ClassFileInfo {
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+
+    /**
+     * Matches class types inside field/method descriptors and generic signatures, e.g. {@code Ljava/lang/String;}
+     */
+    private static final Pattern DESCRIPTOR_CLASS_TYPE = Pattern.compile("L([\\w/$]+)[;<]");
+
+    public final String name;
+    public final String superName;
+    public final List<String> interfaces;
+    public final Set<String> references;
+    public final String sourceFile;
+    /**
+     * If the class declares non-private compile-time constants. Other classes get those inlined by
+     * the compiler, so they don't show up in their {@link #references}.
+     */
+    public final boolean hasInlinableConstants;
+
+    private ClassFileInfo(String name, String superName, List<String> interfaces, Set<String> references,
+                          String sourceFile, boolean hasInlinableConstants) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+        this.references = references;
+        this.sourceFile = sourceFile;
+        this.hasInlinableConstants = hasInlinableConstants;
+    }
+
+    public static ClassFileInfo read(File classFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(classFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(classFile + " isn't a class file");
+            }
+            in.readUnsignedShort(); // minor_version
+            in.readUnsignedShort(); // major_version
+
+            int constantPoolCount = in.readUnsignedShort();
+            String[] utf8Constants = new String[constantPoolCount];
+            int[] classConstants = new int[constantPoolCount];
+            for (int i = 1; i < constantPoolCount; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case CONSTANT_UTF8 -> utf8Constants[i] = in.readUTF();
+                    case CONSTANT_CLASS -> classConstants[i] = in.readUnsignedShort();
+                    case CONSTANT_STRING, CONSTANT_METHOD_TYPE, CONSTANT_MODULE, CONSTANT_PACKAGE ->
+                            in.readUnsignedShort();
+                    case CONSTANT_INTEGER, CONSTANT_FLOAT, CONSTANT_FIELDREF, CONSTANT_METHODREF,
+                         CONSTANT_INTERFACE_METHODREF, CONSTANT_NAME_AND_TYPE, CONSTANT_DYNAMIC,
+                         CONSTANT_INVOKE_DYNAMIC -> in.readInt();
+                    case CONSTANT_METHOD_HANDLE -> {
+                        in.readUnsignedByte();
+                        in.readUnsignedShort();
+                    }
+                    case CONSTANT_LONG, CONSTANT_DOUBLE -> {
+                        in.readLong();
+                        // 8-byte constants take up two entries
+                        i++;
+                    }
+                    default -> throw new IOException("Unknown constant pool tag " + tag + " in " + classFile);
+                }
+            }
+
+            in.readUnsignedShort(); // access_flags
+            String name = utf8Constants[classConstants[in.readUnsignedShort()]];
+            int superClass = in.readUnsignedShort();
+            String superName = superClass == 0 ? null : utf8Constants[classConstants[superClass]];
+            int interfacesCount = in.readUnsignedShort();
+            List<String> interfaces = new ArrayList<>(interfacesCount);
+            for (int i = 0; i < interfacesCount; i++) {
+                interfaces.add(utf8Constants[classConstants[in.readUnsignedShort()]]);
+            }
+
+            boolean hasInlinableConstants = false;
+            int fieldsCount = in.readUnsignedShort();
+            for (int i = 0; i < fieldsCount; i++) {
+                int accessFlags = in.readUnsignedShort();
+                in.readUnsignedShort(); // name_index
+                in.readUnsignedShort(); // descriptor_index
+                boolean hasConstantValue = false;
+                int attributesCount = in.readUnsignedShort();
+                for (int j = 0; j < attributesCount; j++) {
+                    String attributeName = utf8Constants[in.readUnsignedShort()];
+                    skipFully(in, in.readInt());
+                    if ("ConstantValue".equals(attributeName)) {
+                        hasConstantValue = true;
+                    }
+                }
+                if (hasConstantValue && (accessFlags & ACC_PRIVATE) == 0
+                        && (accessFlags & (ACC_STATIC | ACC_FINAL)) == (ACC_STATIC | ACC_FINAL)) {
+                    hasInlinableConstants = true;
+                }
+            }
+
+            int methodsCount = in.readUnsignedShort();
+            for (int i = 0; i < methodsCount; i++) {
+                skipFully(in, 6);
+                int attributesCount = in.readUnsignedShort();
+                for (int j = 0; j < attributesCount; j++) {
+                    in.readUnsignedShort();
+                    skipFully(in, in.readInt());
+                }
+            }
+
+            String sourceFile = null;
+            int attributesCount = in.readUnsignedShort();
+            for (int i = 0; i < attributesCount; i++) {
+                String attributeName = utf8Constants[in.readUnsignedShort()];
+                int length = in.readInt();
+                if ("SourceFile".equals(attributeName)) {
+                    sourceFile = utf8Constants[in.readUnsignedShort()];
+                } else {
+                    skipFully(in, length);
+                }
+            }
+
+            Set<String> references = new HashSet<>();
+            for (int i = 1; i < constantPoolCount; i++) {
+                if (classConstants[i] != 0) {
+                    addReference(references, utf8Constants[classConstants[i]]);
+                } else if (utf8Constants[i] != null && utf8Constants[i].indexOf('L') != -1) {
+                    Matcher matcher = DESCRIPTOR_CLASS_TYPE.matcher(utf8Constants[i]);
+                    while (matcher.find()) {
+                        references.add(matcher.group(1));
+                    }
+                }
+            }
+            references.remove(name);
+
+            return new ClassFileInfo(name, superName, interfaces, references, sourceFile, hasInlinableConstants);
+        }
+    }
+
+    /**
+     * @return The binary name of the class's package with slashes, e.g. {@code com/my/project}, or an empty String
+     */
+    public String getPackageName() {
+        int lastSlash = name.lastIndexOf('/');
+        return lastSlash == -1 ? "" : name.substring(0, lastSlash);
+    }
+
+    private static void addReference(Set<String> references, String className) {
+        if (className.startsWith("[")) {
+            // array types like [Lcom/my/project/Foo;
+            Matcher matcher = DESCRIPTOR_CLASS_TYPE.matcher(className);
+            if (matcher.find()) {
+                references.add(matcher.group(1));
+            }
+        } else {
+            references.add(className);
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int bytes) throws IOException {
+        int remaining = bytes;
+        while (remaining > 0) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of class file");
+            }
+            remaining -= skipped;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package mod.jbk.build.compiler.java;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import mod.jbk.util.LogUtil;
+import pro.sketchware.utility.FileUtil;
+import pro.sketchware.utility.HashUtil;
+
+/**
+ * Keeps track of which Java source files compiled to which .class files and which classes those
+ * reference, so that only changed source files and their dependents have to be recompiled.
+ * <p>
+ * Usage: call {@link #prepare(List, String)}, compile the returned files into {@link #getClassesDirectory()}
+ * (with that directory on the classpath), then call {@link #onCompilationSucceeded()} or
+ * {@link #onCompilationFailed()}.
+ */
+public class IncrementalJavaCompilation {
+
+    private static final String TAG = "IncrementalJava";
+    private static final Pattern PACKAGE_DECLARATION = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+
+    private final File classesDirectory;
+    private final File stateFile;
+    private State state;
+    private Map<String, File> pendingSources = Collections.emptyMap();
+    private Map<String, String> pendingHashes = Collections.emptyMap();
+    private Set<String> classFilesBeforeCompiling = Collections.emptySet();
+
+    public IncrementalJavaCompilation(File cacheDirectory) {
+        classesDirectory = new File(cacheDirectory, "classes");
+        stateFile = new File(cacheDirectory, "state.json");
+        state = readState();
+    }
+
+    /**
+     * Fingerprints a classpath by its entries' paths, and files' sizes and modification times.
+     * Changes to the classpath invalidate all previously compiled classes.
+     */
+    public static String fingerprintClasspath(String classpath) {
+        StringBuilder fingerprint = new StringBuilder();
+        for (String entry : classpath.split(":")) {
+            if (entry.isEmpty()) continue;
+
+            File file = new File(entry);
+            fingerprint.append(entry);
+            if (file.isFile()) {
+                fingerprint.append('|').append(file.length()).append('|').append(file.lastModified());
+            }
+            fingerprint.append('\n');
+        }
+        return fingerprint.toString();
+    }
+
+    public File getClassesDirectory() {
+        return classesDirectory;
+    }
+
+    /**
+     * Figures out which source files need to be compiled and deletes outdated .class files.
+     *
+     * @param sourceFiles       All of the project's Java source files
+     * @param configurationHash Hash of compiler arguments and classpath. If it differs from the last
+     *                          compilation's, everything gets recompiled.
+     * @return The source files to compile. Empty if all classes are up-to-date.
+     */
+    public List<File> prepare(List<File> sourceFiles, String configurationHash) throws IOException {
+        Map<String, File> sources = new HashMap<>();
+        Map<String, String> hashes = new HashMap<>();
+        for (File sourceFile : sourceFiles) {
+            String path = sourceFile.getAbsolutePath();
+            sources.put(path, sourceFile);
+            hashes.put(path, HashUtil.hashFile(sourceFile));
+        }
+
+        Set<String> dirty = null;
+        if (state == null || !configurationHash.equals(state.configurationHash) || !classesDirectory.isDirectory()) {
+            LogUtil.d(TAG, "No usable state of a previous compilation, compiling all " + sources.size() + " source files");
+        } else {
+            dirty = getDirtySources(hashes);
+        }
+
+        // The state on disk must never list classes as up-to-date which are getting deleted, in case the build gets killed
+        if (dirty == null) {
+            deleteStateFile();
+            FileUtil.deleteFile(classesDirectory.getAbsolutePath());
+            state = new State();
+            state.configurationHash = configurationHash;
+            dirty = new HashSet<>(sources.keySet());
+        } else {
+            List<String> outdatedClasses = new ArrayList<>();
+            for (String path : new ArrayList<>(state.sources.keySet())) {
+                if (dirty.contains(path) || !sources.containsKey(path)) {
+                    outdatedClasses.addAll(state.sources.remove(path).classes);
+                }
+            }
+            if (!outdatedClasses.isEmpty()) {
+                FileUtil.writeFile(stateFile.getAbsolutePath(), new Gson().toJson(state));
+                for (String className : outdatedClasses) {
+                    new File(classesDirectory, className + ".class").delete();
+                }
+            }
+            LogUtil.d(TAG, "Recompiling " + dirty.size() + " of " + sources.size() + " source files: " + dirty);
+        }
+        if (!classesDirectory.exists() && !classesDirectory.mkdirs()) {
+            throw new IOException("Couldn't create directory " + classesDirectory);
+        }
+
+        classFilesBeforeCompiling = new HashSet<>();
+        for (File classFile : FileUtil.listFilesRecursively(classesDirectory, ".class")) {
+            classFilesBeforeCompiling.add(classFile.getAbsolutePath());
+        }
+
+        pendingSources = new HashMap<>();
+        pendingHashes = new HashMap<>();
+        List<File> filesToCompile = new LinkedList<>();
+        for (String path : dirty) {
+            pendingSources.put(path, sources.get(path));
+            pendingHashes.put(path, hashes.get(path));
+            filesToCompile.add(sources.get(path));
+        }
+        return filesToCompile;
+    }
+
+    /**
+     * @return Paths of sources to recompile, or <code>null</code> if everything must be recompiled
+     */
+    private Set<String> getDirtySources(Map<String, String> hashes) {
+        Set<String> dirty = new HashSet<>();
+        Set<String> affectedClasses = new HashSet<>();
+
+        for (Map.Entry<String, String> source : hashes.entrySet()) {
+            SourceFileState sourceState = state.sources.get(source.getKey());
+            if (sourceState == null || !sourceState.hash.equals(source.getValue())) {
+                dirty.add(source.getKey());
+                if (sourceState != null) {
+                    if (sourceState.hasInlinableConstants) {
+                        LogUtil.d(TAG, source.getKey() + " declares constants which might be inlined elsewhere, compiling everything");
+                        return null;
+                    }
+                    affectedClasses.addAll(sourceState.classes);
+                }
+            }
+        }
+        for (Map.Entry<String, SourceFileState> previousSource : state.sources.entrySet()) {
+            if (!hashes.containsKey(previousSource.getKey())) {
+                if (previousSource.getValue().hasInlinableConstants) {
+                    LogUtil.d(TAG, previousSource.getKey() + " got deleted and declared constants, compiling everything");
+                    return null;
+                }
+                affectedClasses.addAll(previousSource.getValue().classes);
+            }
+        }
+        if (affectedClasses.isEmpty() && dirty.isEmpty()) {
+            return dirty;
+        }
+
+        // Subclasses of changed classes might have to change as well, e.g. because of removed methods
+        boolean foundSubclasses;
+        do {
+            foundSubclasses = false;
+            for (Map.Entry<String, SourceFileState> source : state.sources.entrySet()) {
+                if (hashes.containsKey(source.getKey()) && !dirty.contains(source.getKey())
+                        && !Collections.disjoint(source.getValue().supertypes, affectedClasses)) {
+                    dirty.add(source.getKey());
+                    affectedClasses.addAll(source.getValue().classes);
+                    foundSubclasses = true;
+                }
+            }
+        } while (foundSubclasses);
+
+        for (Map.Entry<String, SourceFileState> source : state.sources.entrySet()) {
+            if (hashes.containsKey(source.getKey())
+                    && !Collections.disjoint(source.getValue().references, affectedClasses)) {
+                dirty.add(source.getKey());
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Records the classes produced by the last compilation, to be used by the next one.
+     */
+    public void onCompilationSucceeded() throws IOException {
+        Map<String, String> sourcesByClassKey = new HashMap<>();
+        for (Map.Entry<String, File> pendingSource : pendingSources.entrySet()) {
+            Matcher matcher = PACKAGE_DECLARATION.matcher(FileUtil.readFile(pendingSource.getKey()));
+            String packageName = matcher.find() ? matcher.group(1).replace('.', '/') : "";
+            sourcesByClassKey.put(packageName + "/" + pendingSource.getValue().getName(), pendingSource.getKey());
+
+            SourceFileState sourceState = new SourceFileState();
+            sourceState.hash = pendingHashes.get(pendingSource.getKey());
+            state.sources.put(pendingSource.getKey(), sourceState);
+        }
+
+        boolean allClassesMapped = true;
+        for (File classFile : FileUtil.listFilesRecursively(classesDirectory, ".class")) {
+            if (classFilesBeforeCompiling.contains(classFile.getAbsolutePath())) continue;
+
+            ClassFileInfo info = ClassFileInfo.read(classFile);
+            String source = sourcesByClassKey.get(info.getPackageName() + "/" + info.sourceFile);
+            if (source == null) {
+                LogUtil.w(TAG, "Couldn't find the source file of " + info.name);
+                allClassesMapped = false;
+                continue;
+            }
+
+            SourceFileState sourceState = state.sources.get(source);
+            sourceState.classes.add(info.name);
+            sourceState.references.addAll(info.references);
+            if (info.superName != null) {
+                sourceState.supertypes.add(info.superName);
+            }
+            sourceState.supertypes.addAll(info.interfaces);
+            sourceState.hasInlinableConstants |= info.hasInlinableConstants;
+        }
+
+        if (allClassesMapped) {
+            FileUtil.writeFile(stateFile.getAbsolutePath(), new Gson().toJson(state));
+        } else {
+            // Unmapped classes would never get cleaned up, so rather start from scratch next time
+            invalidate();
+        }
+        pendingSources = Collections.emptyMap();
+        pendingHashes = Collections.emptyMap();
+        classFilesBeforeCompiling = Collections.emptySet();
+    }
+
+    /**
+     * Makes the next compilation compile everything, since some outdated classes have been deleted already.
+     */
+    public void onCompilationFailed() {
+        invalidate();
+    }
+
+    private void invalidate() {
+        state = null;
+        deleteStateFile();
+    }
+
+    private void deleteStateFile() {
+        if (stateFile.exists() && !stateFile.delete()) {
+            LogUtil.w(TAG, "Failed to delete " + stateFile);
+        }
+    }
+
+    private State readState() {
+        if (!stateFile.exists()) return null;
+
+        try {
+            return new Gson().fromJson(FileUtil.readFile(stateFile.getAbsolutePath()), State.class);
+        } catch (JsonParseException e) {
+            LogUtil.w(TAG, "Couldn't read state of the last compilation", e);
+            return null;
+        }
+    }
+
+    private static class State {
+        private String configurationHash;
+        private HashMap<String, SourceFileState> sources = new HashMap<>();
+    }
+
+    private static class SourceFileState {
+        private String hash;
+        private final ArrayList<String> classes = new ArrayList<>();
+        private final HashSet<String> references = new HashSet<>();
+        private final HashSet<String> supertypes = new HashSet<>();
+        private boolean hasInlinableConstants;
+    }
+}
@@ -0,0 +1,302 @@
+package mod.jbk.build.compiler.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import mod.jbk.build.BuildProgressReceiver;
+import mod.jbk.build.ProcessRunner;
+import mod.jbk.util.LogUtil;
+
+/**
+ * An AAPT2 process running in daemon mode, which executes one command after another, so that AAPT2
+ * doesn't need to be started again for every compile and link invocation.
+ * <p>
+ * The daemon prints "Ready" to stdout once it's started. Commands are written to its stdin as one
+ * argument per line, terminated by an empty line. AAPT2 then prints the command's diagnostics to stderr,
+ * followed by "Error" if the command failed, and "Done" once it has finished.
+ * <p>
+ * Daemons are pooled for as long as the app runs: there's one daemon per concurrently running command,
+ * and daemons exit after being idle for {@link #IDLE_TIMEOUT_MILLIS}, or on {@link #shutdownAll()}.
+ */
+public class Aapt2Daemon {
+
+    private static final String TAG = "Aapt2Daemon";
+    private static final long STARTUP_TIMEOUT_MILLIS = 10 * 1000;
+    private static final long IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    private static final long POLL_INTERVAL_MILLIS = 100;
+    private static final int MAX_DAEMONS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static final Object poolLock = new Object();
+    private static final List<Aapt2Daemon> idleDaemons = new ArrayList<>();
+    private static int busyDaemons;
+    /**
+     * Incremented by {@link #shutdownAll()}, so that daemons started before don't return to the pool.
+     */
+    private static int shutdownGeneration;
+    /**
+     * The AAPT2 binary ({@link #getBinaryIdentity(File)}) that failed to start in daemon mode, if any.
+     */
+    private static String unsupportedBinary;
+    private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG + "-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String binaryIdentity;
+    private final Process process;
+    private final Writer stdin;
+    private final BlockingQueue<String> stderrLines = new LinkedBlockingQueue<>();
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private volatile boolean exited;
+    private volatile ProcessRunner.OutputLines currentStdout;
+    private volatile BuildProgressReceiver currentProgressReceiver;
+    private long idleSince;
+    private int generation;
+
+    private Aapt2Daemon(File aapt2, String binaryIdentity) throws IOException {
+        this.binaryIdentity = binaryIdentity;
+        List<String> command = new ArrayList<>();
+        command.add(aapt2.getAbsolutePath());
+        command.add("daemon");
+        process = new ProcessBuilder(command).start();
+        stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+
+        startReader("stdout", () -> ProcessRunner.readLines(process.getInputStream(), line -> {
+            if (ready.getCount() > 0 && line.equals("Ready")) {
+                ready.countDown();
+                return;
+            }
+            ProcessRunner.OutputLines stdout = currentStdout;
+            if (stdout != null) {
+                stdout.add(line);
+                ProcessRunner.notifyOutput(currentProgressReceiver, line);
+            }
+        }));
+        startReader("stderr", () -> ProcessRunner.readLines(process.getErrorStream(), stderrLines::add));
+    }
+
+    /**
+     * Runs an AAPT2 command, like {@code compile --dir res -o compiled.zip}, in a pooled daemon.
+     *
+     * @param args The arguments AAPT2 would have been run with, without the binary itself
+     * @return The command's result, or {@code null} if it can't be run in daemon mode
+     * @throws IOException If the daemon died while running the command
+     */
+    static ProcessRunner.Result run(File aapt2, List<String> args, BuildProgressReceiver progressReceiver, long timeoutMillis) throws IOException {
+        for (String arg : args) {
+            // Can't be passed through the line-based protocol
+            if (arg.isEmpty() || arg.indexOf('\n') >= 0) return null;
+        }
+
+        Aapt2Daemon daemon = acquire(aapt2);
+        if (daemon == null) return null;
+
+        boolean reusable = false;
+        try {
+            ProcessRunner.Result result = daemon.execute(args, progressReceiver, timeoutMillis);
+            reusable = !result.isCanceled() && !result.isTimedOut();
+            return result;
+        } finally {
+            release(daemon, reusable);
+        }
+    }
+
+    /**
+     * Stops all daemons, e.g. when leaving the editor. Daemons that are running a command stop once it's done.
+     */
+    public static void shutdownAll() {
+        synchronized (poolLock) {
+            for (Aapt2Daemon daemon : idleDaemons) {
+                daemon.destroy();
+            }
+            idleDaemons.clear();
+            unsupportedBinary = null;
+            // Makes busy daemons get stopped once released
+            shutdownGeneration++;
+        }
+    }
+
+    private static Aapt2Daemon acquire(File aapt2) throws IOException {
+        String binaryIdentity = getBinaryIdentity(aapt2);
+        int generation;
+        synchronized (poolLock) {
+            if (binaryIdentity.equals(unsupportedBinary)) return null;
+
+            while (true) {
+                Iterator<Aapt2Daemon> iterator = idleDaemons.iterator();
+                while (iterator.hasNext()) {
+                    Aapt2Daemon daemon = iterator.next();
+                    iterator.remove();
+                    if (daemon.binaryIdentity.equals(binaryIdentity) && !daemon.exited) {
+                        busyDaemons++;
+                        return daemon;
+                    }
+                    // AAPT2 got updated since, or the daemon crashed
+                    daemon.destroy();
+                }
+                if (busyDaemons < MAX_DAEMONS) break;
+
+                try {
+                    poolLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for an AAPT2 daemon");
+                }
+            }
+            busyDaemons++;
+            generation = shutdownGeneration;
+        }
+
+        Aapt2Daemon daemon = null;
+        try {
+            daemon = new Aapt2Daemon(aapt2, binaryIdentity);
+            if (!daemon.ready.await(STARTUP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) || daemon.exited) {
+                LogUtil.w(TAG, "AAPT2 didn't start in daemon mode, running it without");
+                daemon.destroy();
+                daemon = null;
+                synchronized (poolLock) {
+                    unsupportedBinary = binaryIdentity;
+                }
+            } else {
+                daemon.generation = generation;
+                LogUtil.d(TAG, "Started AAPT2 daemon");
+            }
+            return daemon;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (daemon != null) daemon.destroy();
+            daemon = null;
+            throw new InterruptedIOException("Interrupted while starting AAPT2 daemon");
+        } finally {
+            if (daemon == null) {
+                synchronized (poolLock) {
+                    busyDaemons--;
+                    poolLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static void release(Aapt2Daemon daemon, boolean reusable) {
+        synchronized (poolLock) {
+            busyDaemons--;
+            if (reusable && !daemon.exited && daemon.generation == shutdownGeneration) {
+                daemon.idleSince = System.currentTimeMillis();
+                idleDaemons.add(daemon);
+                reaper.schedule(Aapt2Daemon::stopIdleDaemons, IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } else {
+                daemon.destroy();
+            }
+            poolLock.notifyAll();
+        }
+    }
+
+    private static void stopIdleDaemons() {
+        synchronized (poolLock) {
+            long now = System.currentTimeMillis();
+            Iterator<Aapt2Daemon> iterator = idleDaemons.iterator();
+            while (iterator.hasNext()) {
+                Aapt2Daemon daemon = iterator.next();
+                if (now - daemon.idleSince >= IDLE_TIMEOUT_MILLIS) {
+                    iterator.remove();
+                    daemon.destroy();
+                }
+            }
+        }
+    }
+
+    private static String getBinaryIdentity(File aapt2) {
+        return aapt2.getAbsolutePath() + "|" + aapt2.length() + "|" + aapt2.lastModified();
+    }
+
+    private ProcessRunner.Result execute(List<String> args, BuildProgressReceiver progressReceiver, long timeoutMillis) throws IOException {
+        ProcessRunner.OutputLines stdout = new ProcessRunner.OutputLines();
+        ProcessRunner.OutputLines stderr = new ProcessRunner.OutputLines();
+        currentStdout = stdout;
+        currentProgressReceiver = progressReceiver;
+        try {
+            stderrLines.clear();
+            for (String arg : args) {
+                stdin.write(arg);
+                stdin.write('\n');
+            }
+            stdin.write('\n');
+            stdin.flush();
+
+            long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+            boolean failed = false;
+            while (true) {
+                String line;
+                try {
+                    line = stderrLines.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    destroy();
+                    throw new InterruptedIOException("Interrupted while waiting for AAPT2 daemon");
+                }
+
+                if (line == null) {
+                    if (exited && stderrLines.isEmpty()) {
+                        throw new IOException("AAPT2 daemon exited while running " + args.get(0));
+                    } else if (progressReceiver != null && progressReceiver.isBuildCanceled()) {
+                        LogUtil.w(TAG, "Killing AAPT2 daemon because the build got canceled");
+                        destroy();
+                        return new ProcessRunner.Result(-1, true, false, stdout.toString(), stderr.toString());
+                    } else if (System.currentTimeMillis() >= deadline) {
+                        LogUtil.w(TAG, "Killing AAPT2 daemon after it timed out");
+                        destroy();
+                        return new ProcessRunner.Result(-1, false, true, stdout.toString(), stderr.toString());
+                    }
+                } else if (line.equals("Done")) {
+                    return new ProcessRunner.Result(failed ? 1 : 0, false, false, stdout.toString(), stderr.toString());
+                } else if (line.equals("Error")) {
+                    failed = true;
+                } else {
+                    stderr.add(line);
+                    ProcessRunner.notifyOutput(progressReceiver, line);
+                }
+            }
+        } finally {
+            currentStdout = null;
+            currentProgressReceiver = null;
+        }
+    }
+
+    private void startReader(String streamName, StreamReader reader) {
+        Thread thread = new Thread(() -> {
+            try {
+                reader.read();
+            } catch (IOException e) {
+                LogUtil.d(TAG, "Stopped reading " + streamName + " of AAPT2 daemon: " + e.getMessage());
+            }
+            exited = true;
+            // Don't wait for a daemon that exited right away
+            ready.countDown();
+        }, TAG + "-" + streamName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void destroy() {
+        exited = true;
+        process.destroy();
+    }
+
+    private interface StreamReader {
+        void read() throws IOException;
+    }
+}
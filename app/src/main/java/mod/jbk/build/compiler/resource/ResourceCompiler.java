@@ -4,23 +4,40 @@ import static com.besome.sketch.Config.VAR_DEFAULT_TARGET_SDK_VERSION;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.util.Log;
 
 import pro.sketchware.SketchApplication;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import a.a.a.ProjectBuilder;
 import a.a.a.Jp;
 import a.a.a.zy;
 import mod.agus.jcoderz.editor.manage.library.locallibrary.ManageLocalLibrary;
-import pro.sketchware.utility.BinaryExecutor;
 import pro.sketchware.utility.FileUtil;
+import pro.sketchware.utility.HashUtil;
 import mod.hey.studios.build.BuildSettings;
 import mod.hey.studios.project.ProjectSettings;
 import mod.jbk.build.BuildProgressReceiver;
 import mod.jbk.build.BuiltInLibraries;
+import mod.jbk.build.ProcessRunner;
 import mod.jbk.diagnostic.MissingFileException;
 import mod.jbk.util.LogUtil;
 
@@ -38,6 +55,10 @@ public class ResourceCompiler {
      * </pre>
      */
     private static final String TAG = "AppBuilder";
+    /**
+     * How long a single AAPT2 invocation may take before it's considered hanging and gets killed.
+     */
+    private static final long AAPT2_TIMEOUT_MILLIS = 10 * 60 * 1000;
     private final boolean willBuildAppBundle;
     private final File aaptFile;
     private final BuildProgressReceiver progressReceiver;
@@ -52,7 +73,7 @@ public class ResourceCompiler {
 
     public void compile() throws IOException, zy, MissingFileException {
         Compiler resourceCompiler;
-        resourceCompiler = new Aapt2Compiler(builder, aaptFile, willBuildAppBundle);
+        resourceCompiler = new Aapt2Compiler(builder, aaptFile, willBuildAppBundle, progressReceiver);
 
         resourceCompiler.setProgressListener(new Compiler.ProgressListener() {
             @Override
@@ -102,14 +123,22 @@ public class ResourceCompiler {
 
         private final File aapt2;
         private final ProjectBuilder buildHelper;
+        private final BuildProgressReceiver progressReceiver;
         private final File compiledBuiltInLibraryResourcesDirectory;
+        private final File compiledLocalLibraryResourcesDirectory;
+        /**
+         * Compiled resources of local libraries, in the order of {@link ManageLocalLibrary#getResLocalLibrary()}.
+         */
+        private final List<File> compiledLocalLibraryResources = new ArrayList<>();
         private ProgressListener progressListener;
 
-        public Aapt2Compiler(ProjectBuilder buildHelper, File aapt2, boolean buildAppBundle) {
+        public Aapt2Compiler(ProjectBuilder buildHelper, File aapt2, boolean buildAppBundle, BuildProgressReceiver progressReceiver) {
             this.buildHelper = buildHelper;
             this.aapt2 = aapt2;
             this.buildAppBundle = buildAppBundle;
+            this.progressReceiver = progressReceiver;
             compiledBuiltInLibraryResourcesDirectory = new File(SketchApplication.getContext().getCacheDir(), "compiledLibs");
+            compiledLocalLibraryResourcesDirectory = new File(SketchApplication.getContext().getCacheDir(), "compiledLocalLibs");
         }
 
         @Override
@@ -124,7 +153,7 @@ public class ResourceCompiler {
             compileBuiltInLibraryResources();
             LogUtil.d(TAG + ":c", "Compiling built-in library resources took " + (System.currentTimeMillis() - savedTimeMillis) + " ms");
             savedTimeMillis = System.currentTimeMillis();
-            compileLocalLibraryResources(outputPath);
+            compileLocalLibraryResources();
             LogUtil.d(TAG + ":c", "Compiling local library resources took " + (System.currentTimeMillis() - savedTimeMillis) + " ms");
             savedTimeMillis = System.currentTimeMillis();
             compileProjectResources(outputPath);
@@ -204,7 +233,7 @@ public class ResourceCompiler {
             }
 
             /* Add local libraries' assets */
-            for (String localLibraryAssetsDirectory : new ManageLocalLibrary(buildHelper.yq.sc_id).getAssets()) {
+            for (String localLibraryAssetsDirectory : buildHelper.mll.getAssets()) {
                 linkingAssertDirectoryExists(localLibraryAssetsDirectory);
                 args.add("-A");
                 args.add(localLibraryAssetsDirectory);
@@ -219,16 +248,9 @@ public class ResourceCompiler {
             }
 
             /* Include compiled local libraries' resources */
-            File[] filesInCompiledResourcesPath = new File(resourcesPath).listFiles();
-            if (filesInCompiledResourcesPath != null) {
-                for (File file : filesInCompiledResourcesPath) {
-                    if (file.isFile()) {
-                        if (!file.getName().equals("project.zip") || !file.getName().equals("project-imported.zip")) {
-                            args.add("-R");
-                            args.add(file.getAbsolutePath());
-                        }
-                    }
-                }
+            for (File compiledResources : compiledLocalLibraryResources) {
+                args.add("-R");
+                args.add(compiledResources.getAbsolutePath());
             }
 
             /* Include compiled project resources */
@@ -270,17 +292,56 @@ public class ResourceCompiler {
             args.add("-o");
             args.add(buildHelper.yq.resourcesApkPath);
 
-            LogUtil.d(TAG + ":l", args.toString());
-            BinaryExecutor executor = new BinaryExecutor();
-            executor.setCommands(args);
-            if (!executor.execute().isEmpty()) {
-                LogUtil.e(TAG + ":l", executor.getLog());
-                throw new zy(executor.getLog());
+            runAapt2(args, TAG + ":l");
+        }
+
+        /**
+         * Runs an AAPT2 command, in a long-lived {@link Aapt2Daemon} if possible. Output on stderr
+         * alone doesn't count as failure, since AAPT2 also reports warnings there.
+         *
+         * @throws zy If AAPT2 exited with a non-zero exit code, timed out, or the build got canceled
+         */
+        private void runAapt2(List<String> commands, String tag) throws zy {
+            LogUtil.d(tag, "Now executing: " + commands);
+            ProcessRunner.Result result = null;
+            try {
+                result = Aapt2Daemon.run(aapt2, commands.subList(1, commands.size()), progressReceiver, AAPT2_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                LogUtil.w(tag, "AAPT2 daemon failed, running AAPT2 on its own instead", e);
+            }
+            try {
+                if (result == null) {
+                    result = new ProcessRunner(commands)
+                            .setProgressReceiver(progressReceiver)
+                            .setTimeout(AAPT2_TIMEOUT_MILLIS)
+                            .run();
+                }
+            } catch (IOException e) {
+                LogUtil.e(tag, "Couldn't run AAPT2", e);
+                throw new zy("Couldn't run AAPT2: " + e.getMessage());
+            }
+
+            if (result.isCanceled()) {
+                throw new zy("Build canceled");
+            } else if (result.isTimedOut()) {
+                LogUtil.e(tag, "AAPT2 timed out:\n" + result.getOutput());
+                throw new zy("AAPT2 didn't finish within " + AAPT2_TIMEOUT_MILLIS / 60000 + " minutes and got killed.\n"
+                        + result.getOutput());
+            } else if (!result.isSuccessful()) {
+                String output = result.getOutput();
+                LogUtil.e(tag, "AAPT2 exited with code " + result.getExitCode() + ":\n" + output);
+                throw new zy(output.isEmpty() ? "AAPT2 exited with code " + result.getExitCode() : output);
+            } else if (!result.getStderr().isEmpty()) {
+                LogUtil.w(tag, "AAPT2 reported:\n" + result.getStderr());
             }
         }
 
         private void compileProjectResources(String outputPath) throws zy, MissingFileException {
             compilingAssertDirectoryExists(buildHelper.yq.resDirectoryPath);
+            if (buildHelper.isIncrementalBuildEnabled()) {
+                compileProjectResourcesIncrementally(new File(outputPath, "project.zip"));
+                return;
+            }
 
             ArrayList<String> commands = new ArrayList<>();
             commands.add(aapt2.getAbsolutePath());
@@ -289,12 +350,147 @@ public class ResourceCompiler {
             commands.add(buildHelper.yq.resDirectoryPath);
             commands.add("-o");
             commands.add(outputPath + File.separator + "project.zip");
-            LogUtil.d(TAG + ":cPR", "Now executing: " + commands);
-            BinaryExecutor executor = new BinaryExecutor();
-            executor.setCommands(commands);
-            if (!executor.execute().isEmpty()) {
-                LogUtil.e(TAG, executor.getLog());
-                throw new zy(executor.getLog());
+            runAapt2(commands, TAG + ":cPR");
+        }
+
+        /**
+         * Compiles every project resource file on its own and keeps the results between builds, so that
+         * only changed files have to be compiled again. All results then get packed into {@code archive},
+         * just like <code>aapt2 compile --dir</code> would have done.
+         */
+        private void compileProjectResourcesIncrementally(File archive) throws zy {
+            File cacheDirectory = new File(buildHelper.yq.buildCachePath, "compiledResources");
+            cacheDirectory.mkdirs();
+
+            Set<String> usedEntries = new HashSet<>();
+            List<File> compiledResources = new ArrayList<>();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            try {
+                for (File resourceFile : listResourceFiles(new File(buildHelper.yq.resDirectoryPath))) {
+                    String key = HashUtil.hashString(resourceFile.getParentFile().getName() + File.separator
+                            + resourceFile.getName() + "\n" + HashUtil.hashFile(resourceFile));
+                    File entry = new File(cacheDirectory, key);
+                    usedEntries.add(key);
+                    compiledResources.add(entry);
+                    if (!entry.isDirectory() || isCompiledByOlderAapt2(entry)) {
+                        tasks.add(() -> {
+                            compileResourceFile(resourceFile, entry);
+                            return null;
+                        });
+                    }
+                }
+            } catch (IOException e) {
+                throw new zy("Couldn't hash project resources: " + e.getMessage());
+            }
+            LogUtil.d(TAG + ":cPRI", "Compiling " + tasks.size() + " of " + compiledResources.size() + " resource files");
+            runConcurrently(tasks);
+
+            File[] entries = cacheDirectory.listFiles();
+            if (entries != null) {
+                for (File entry : entries) {
+                    if (!usedEntries.contains(entry.getName())) {
+                        FileUtil.deleteFile(entry.getAbsolutePath());
+                    }
+                }
+            }
+
+            // ZipOutputStream refuses to write archives without entries
+            if (compiledResources.isEmpty()) return;
+
+            try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+                out.setLevel(Deflater.BEST_SPEED);
+                byte[] buffer = new byte[8192];
+                for (File entry : compiledResources) {
+                    File[] flatFiles = entry.listFiles();
+                    if (flatFiles == null) continue;
+
+                    for (File flatFile : flatFiles) {
+                        out.putNextEntry(new ZipEntry(flatFile.getName()));
+                        try (InputStream in = new FileInputStream(flatFile)) {
+                            int read;
+                            while ((read = in.read(buffer)) != -1) {
+                                out.write(buffer, 0, read);
+                            }
+                        }
+                        out.closeEntry();
+                    }
+                }
+            } catch (IOException e) {
+                LogUtil.e(TAG + ":cPRI", "Failed to pack compiled resources", e);
+                throw new zy("Couldn't pack compiled resources: " + e.getMessage());
+            }
+        }
+
+        /**
+         * @return All files in resource type directories like drawable/ or values-night/ of {@code resDirectory}, sorted
+         */
+        private List<File> listResourceFiles(File resDirectory) {
+            List<File> resourceFiles = new ArrayList<>();
+            File[] typeDirectories = resDirectory.listFiles(File::isDirectory);
+            if (typeDirectories == null) return resourceFiles;
+
+            Arrays.sort(typeDirectories);
+            for (File typeDirectory : typeDirectories) {
+                File[] files = typeDirectory.listFiles(file -> file.isFile() && !file.getName().startsWith("."));
+                if (files != null) {
+                    Arrays.sort(files);
+                    resourceFiles.addAll(Arrays.asList(files));
+                }
+            }
+            return resourceFiles;
+        }
+
+        /**
+         * Compiles a single resource file into an empty directory {@code outputDirectory}.
+         * Since AAPT2 picks the compiled files' names, there's one directory per resource file.
+         */
+        private void compileResourceFile(File resourceFile, File outputDirectory) throws zy {
+            File temporaryDirectory = new File(outputDirectory.getAbsolutePath() + ".tmp");
+            emptyOrCreateDirectory(temporaryDirectory.getAbsolutePath());
+
+            ArrayList<String> commands = new ArrayList<>();
+            commands.add(aapt2.getAbsolutePath());
+            commands.add("compile");
+            commands.add(resourceFile.getAbsolutePath());
+            commands.add("-o");
+            commands.add(temporaryDirectory.getAbsolutePath());
+            try {
+                runAapt2(commands, TAG + ":cRF");
+            } catch (zy e) {
+                FileUtil.deleteFile(temporaryDirectory.getAbsolutePath());
+                throw e;
+            }
+
+            FileUtil.deleteFile(outputDirectory.getAbsolutePath());
+            if (!temporaryDirectory.renameTo(outputDirectory)) {
+                throw new zy("Couldn't move compiled " + resourceFile.getName() + " to " + outputDirectory);
+            }
+        }
+
+        /**
+         * Runs {@code tasks} on a pool bounded by the number of CPU cores and waits for all of them.
+         *
+         * @throws zy The first failed task's exception, or a wrapper of it
+         */
+        private void runConcurrently(List<Callable<Void>> tasks) throws zy {
+            if (tasks.isEmpty()) return;
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+            try {
+                for (Future<Void> result : executor.invokeAll(tasks)) {
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new zy("Interrupted while compiling resources");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof zy compileError) {
+                    throw compileError;
+                }
+                LogUtil.e(TAG, "Failed to compile resources", e.getCause());
+                throw new zy(Log.getStackTraceString(e.getCause()));
+            } finally {
+                executor.shutdown();
             }
         }
 
@@ -305,32 +501,54 @@ public class ResourceCompiler {
             FileUtil.makeDir(path);
         }
 
-        private void compileLocalLibraryResources(String outputPath) throws zy, MissingFileException {
+        /**
+         * Compiles all local libraries' resources concurrently. Libraries whose res/ hasn't changed since it
+         * was last compiled are skipped.
+         */
+        private void compileLocalLibraryResources() throws zy, MissingFileException {
             int localLibrariesCount = buildHelper.mll.getResLocalLibrary().size();
             LogUtil.d(TAG + ":cLLR", "About to compile " + localLibrariesCount
                     + " local " + (localLibrariesCount == 1 ? "library" : "libraries"));
+            compiledLocalLibraryResources.clear();
+            List<Callable<Void>> tasks = new ArrayList<>();
             for (String localLibraryResDirectory : buildHelper.mll.getResLocalLibrary()) {
                 File localLibraryDirectory = new File(localLibraryResDirectory).getParentFile();
                 if (localLibraryDirectory != null) {
                     compilingAssertDirectoryExists(localLibraryResDirectory);
 
-                    ArrayList<String> commands = new ArrayList<>();
-                    commands.add(aapt2.getAbsolutePath());
-                    commands.add("compile");
-                    commands.add("--dir");
-                    commands.add(localLibraryResDirectory);
-                    commands.add("-o");
-                    commands.add(outputPath + File.separator + localLibraryDirectory.getName() + ".zip");
-
-                    LogUtil.d(TAG + ":cLLR", "Now executing: " + commands);
-                    BinaryExecutor executor = new BinaryExecutor();
-                    executor.setCommands(commands);
-                    if (!executor.execute().isEmpty()) {
-                        LogUtil.e(TAG, executor.getLog());
-                        throw new zy(executor.getLog());
-                    }
+                    File compiledResources = new File(compiledLocalLibraryResourcesDirectory, localLibraryDirectory.getName() + ".zip");
+                    compiledLocalLibraryResources.add(compiledResources);
+                    tasks.add(() -> {
+                        compileLocalLibraryResources(localLibraryResDirectory, compiledResources);
+                        return null;
+                    });
                 }
             }
+            compiledLocalLibraryResourcesDirectory.mkdirs();
+            runConcurrently(tasks);
+        }
+
+        private void compileLocalLibraryResources(String resDirectory, File compiledResources) throws zy, IOException {
+            File hashFile = new File(compiledResources.getAbsolutePath() + ".sha256");
+            String hash = HashUtil.hashString(resDirectory + "\n" + HashUtil.hashDirectory(new File(resDirectory)));
+            if (compiledResources.exists() && hashFile.exists()
+                    && hash.equals(FileUtil.readFile(hashFile.getAbsolutePath()))
+                    && !isCompiledByOlderAapt2(compiledResources)) {
+                LogUtil.d(TAG + ":cLLR", "Skipped resource recompilation for local library " + resDirectory);
+                return;
+            }
+            hashFile.delete();
+
+            ArrayList<String> commands = new ArrayList<>();
+            commands.add(aapt2.getAbsolutePath());
+            commands.add("compile");
+            commands.add("--dir");
+            commands.add(resDirectory);
+            commands.add("-o");
+            commands.add(compiledResources.getAbsolutePath());
+
+            runAapt2(commands, TAG + ":cLLR");
+            FileUtil.writeFile(hashFile.getAbsolutePath(), hash);
         }
 
         private void compileBuiltInLibraryResources() throws zy, MissingFileException {
@@ -342,7 +560,7 @@ public class ResourceCompiler {
 
                     compilingAssertDirectoryExists(libraryResources);
 
-                    if (isBuiltInLibraryRecompilingNeeded(cachedCompiledResources)) {
+                    if (isCompiledByOlderAapt2(cachedCompiledResources)) {
                         ArrayList<String> commands = new ArrayList<>();
                         commands.add(aapt2.getAbsolutePath());
                         commands.add("compile");
@@ -351,13 +569,7 @@ public class ResourceCompiler {
                         commands.add("-o");
                         commands.add(cachedCompiledResources.getAbsolutePath());
 
-                        LogUtil.d(TAG + ":cBILR", "Now executing: " + commands);
-                        BinaryExecutor executor = new BinaryExecutor();
-                        executor.setCommands(commands);
-                        if (!executor.execute().isEmpty()) {
-                            LogUtil.e(TAG + ":cBILR", executor.getLog());
-                            throw new zy(executor.getLog());
-                        }
+                        runAapt2(commands, TAG + ":cBILR");
                     } else {
                         LogUtil.d(TAG + ":cBILR", "Skipped resource recompilation for built-in library " + builtInLibrary.getName());
                     }
@@ -365,17 +577,21 @@ public class ResourceCompiler {
             }
         }
 
-        private boolean isBuiltInLibraryRecompilingNeeded(File cachedCompiledResources) {
+        /**
+         * @return If {@code cachedCompiledResources} doesn't exist or has been compiled before Sketchware Pro
+         * (and with it AAPT2) was last updated
+         */
+        private boolean isCompiledByOlderAapt2(File cachedCompiledResources) {
             if (cachedCompiledResources.exists()) {
                 try {
                     Context context = SketchApplication.getContext();
                     return context.getPackageManager().getPackageInfo(context.getPackageName(), 0)
                             .lastUpdateTime > cachedCompiledResources.lastModified();
                 } catch (PackageManager.NameNotFoundException e) {
-                    LogUtil.e(TAG + ":iBILRN", "Couldn't get package info about ourselves: " + e.getMessage(), e);
+                    LogUtil.e(TAG + ":iCBOA", "Couldn't get package info about ourselves: " + e.getMessage(), e);
                 }
             } else {
-                LogUtil.d(TAG + ":iBILRN", "File " + cachedCompiledResources.getAbsolutePath()
+                LogUtil.d(TAG + ":iCBOA", "File " + cachedCompiledResources.getAbsolutePath()
                         + " doesn't exist, forcing compilation");
             }
             return true;
@@ -391,13 +607,7 @@ public class ResourceCompiler {
                 commands.add(buildHelper.fpu.getPathResource(buildHelper.yq.sc_id));
                 commands.add("-o");
                 commands.add(outputPath + File.separator + "project-imported.zip");
-                LogUtil.d(TAG + ":cIR", "Now executing: " + commands);
-                BinaryExecutor executor = new BinaryExecutor();
-                executor.setCommands(commands);
-                if (!executor.execute().isEmpty()) {
-                    LogUtil.e(TAG, executor.getLog());
-                    throw new zy(executor.getLog());
-                }
+                runAapt2(commands, TAG + ":cIR");
             }
         }
 
@@ -0,0 +1,256 @@
+package mod.jbk.build.compiler.stringfog;
+
+import android.content.Context;
+
+import com.github.megatronking.stringfog.plugin.StringFogClassInjector;
+import com.github.megatronking.stringfog.plugin.StringFogMappingPrinter;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import a.a.a.KB;
+import mod.jbk.util.LogUtil;
+import pro.sketchware.BuildConfig;
+import pro.sketchware.utility.FileUtil;
+import pro.sketchware.utility.HashUtil;
+
+/**
+ * Runs StringFog on .class files, keeping each class's fogged bytes and mapping between builds, so
+ * that only classes whose bytes changed need to be fogged again. Classes get fogged in parallel.
+ * <p>
+ * Fogging is deterministic, since StringFog's XOR implementation always uses the same key.
+ */
+public class IncrementalStringFog {
+
+    private static final String TAG = "IncrementalStringFog";
+    private static final String KEY = "UTF-8";
+    private static final String IMPLEMENTATION = "com.github.megatronking.stringfog.xor.StringFogImpl";
+    private static final String RUNTIME_ASSET = "stringfog/stringfog.zip";
+
+    private final File classesDirectory;
+    private final File foggedDirectory;
+    private final File mappingsDirectory;
+    private final File runtimeDirectory;
+    private final File stateFile;
+
+    /**
+     * @param cacheDirectory   Directory to keep fogged classes, their mappings and state in
+     * @param classesDirectory Directory with all .class files to fog
+     */
+    public IncrementalStringFog(File cacheDirectory, File classesDirectory) {
+        this.classesDirectory = classesDirectory;
+        foggedDirectory = new File(cacheDirectory, "classes");
+        mappingsDirectory = new File(cacheDirectory, "mappings");
+        runtimeDirectory = new File(cacheDirectory, "runtime");
+        stateFile = new File(cacheDirectory, "state.json");
+    }
+
+    /**
+     * Replaces every .class file in the classes directory with its fogged version, and writes the
+     * mapping of all classes' fogged strings to {@code mappingFile}.
+     */
+    public void fog(File mappingFile) throws IOException {
+        long startedAt = System.currentTimeMillis();
+        State state = readState();
+        if (state == null || !BuildConfig.GIT_HASH.equals(state.version)) {
+            FileUtil.deleteFile(foggedDirectory.getAbsolutePath());
+            FileUtil.deleteFile(mappingsDirectory.getAbsolutePath());
+            state = new State();
+            state.version = BuildConfig.GIT_HASH;
+        }
+
+        String rootPath = classesDirectory.getAbsolutePath();
+        List<String> names = new ArrayList<>();
+        for (File classFile : FileUtil.listFilesRecursively(classesDirectory, ".class")) {
+            String path = classFile.getAbsolutePath();
+            names.add(path.substring(rootPath.length() + 1, path.length() - ".class".length()).replace(File.separatorChar, '/'));
+        }
+        // StringFog's own injector deletes these as well
+        for (File dexFile : FileUtil.listFilesRecursively(classesDirectory, ".dex")) {
+            dexFile.delete();
+        }
+
+        Map<String, String> hashes = new ConcurrentHashMap<>();
+        runInParallel(names, name -> hashes.put(name, HashUtil.hashFile(new File(classesDirectory, name + ".class"))));
+
+        List<String> dirty = new ArrayList<>();
+        for (String name : names) {
+            if (!hashes.get(name).equals(state.classes.get(name)) || !new File(foggedDirectory, name + ".class").isFile()) {
+                dirty.add(name);
+            }
+        }
+        List<String> removed = new ArrayList<>(state.classes.keySet());
+        removed.removeAll(hashes.keySet());
+        for (String name : removed) {
+            state.classes.remove(name);
+            new File(foggedDirectory, name + ".class").delete();
+            new File(mappingsDirectory, name + ".txt").delete();
+        }
+        // Classes being fogged must not be reused if fogging them gets interrupted
+        for (String name : dirty) {
+            state.classes.remove(name);
+        }
+        writeState(state);
+
+        // Parallel fogging tasks racing each other to create the same package directory would fail
+        Set<File> packageDirectories = new HashSet<>();
+        for (String name : dirty) {
+            packageDirectories.add(new File(foggedDirectory, name + ".class").getParentFile());
+            packageDirectories.add(new File(mappingsDirectory, name + ".txt").getParentFile());
+        }
+        for (File packageDirectory : packageDirectories) {
+            if (!packageDirectory.isDirectory() && !packageDirectory.mkdirs()) {
+                throw new IOException("Failed to create directory " + packageDirectory);
+            }
+        }
+        runInParallel(dirty, this::fogClass);
+        for (String name : dirty) {
+            state.classes.put(name, hashes.get(name));
+        }
+        writeState(state);
+
+        runInParallel(names, name -> FileUtil.copyDirectory(new File(foggedDirectory, name + ".class"),
+                new File(classesDirectory, name + ".class")));
+        writeMapping(mappingFile, names);
+
+        LogUtil.d(TAG, "Fogged " + dirty.size() + " of " + names.size() + " classes in "
+                + (System.currentTimeMillis() - startedAt) + " ms");
+    }
+
+    /**
+     * Copies StringFog's runtime classes, which fogged classes decrypt their strings with, to the
+     * classes directory. They only get extracted from assets once per app version.
+     */
+    public void addRuntime(Context context) throws IOException {
+        File versionFile = new File(runtimeDirectory, ".version");
+        if (!versionFile.isFile() || !BuildConfig.GIT_HASH.equals(FileUtil.readFile(versionFile.getAbsolutePath()))) {
+            FileUtil.deleteFile(runtimeDirectory.getAbsolutePath());
+            KB.a(context, RUNTIME_ASSET, runtimeDirectory.getAbsolutePath());
+            FileUtil.writeFile(versionFile.getAbsolutePath(), BuildConfig.GIT_HASH);
+        }
+
+        for (File file : FileUtil.listFilesRecursively(runtimeDirectory, ".class")) {
+            String relativePath = file.getAbsolutePath().substring(runtimeDirectory.getAbsolutePath().length() + 1);
+            FileUtil.copyDirectory(file, new File(classesDirectory, relativePath));
+        }
+    }
+
+    private void fogClass(String name) throws IOException {
+        File fogged = new File(foggedDirectory, name + ".class");
+        File temporaryFile = new File(foggedDirectory, name + ".class.tmp");
+
+        // Injectors and mapping printers aren't thread-safe, so every class gets its own
+        StringFogMappingPrinter mappingPrinter = new StringFogMappingPrinter(new File(mappingsDirectory, name + ".txt"));
+        StringFogClassInjector injector = new StringFogClassInjector(new String[0], KEY, IMPLEMENTATION, IMPLEMENTATION, mappingPrinter);
+        mappingPrinter.startMappingOutput();
+        try {
+            injector.doFog2Class(new File(classesDirectory, name + ".class"), temporaryFile);
+        } finally {
+            mappingPrinter.endMappingOutput();
+        }
+        if (!temporaryFile.renameTo(fogged)) {
+            temporaryFile.delete();
+            throw new IOException("Failed to move fogged class to " + fogged);
+        }
+    }
+
+    private void writeMapping(File mappingFile, List<String> names) throws IOException {
+        StringFogMappingPrinter mappingPrinter = new StringFogMappingPrinter(mappingFile);
+        mappingPrinter.startMappingOutput();
+        mappingPrinter.ouputInfo(KEY, IMPLEMENTATION);
+        mappingPrinter.endMappingOutput();
+
+        try (OutputStream outputStream = new FileOutputStream(mappingFile, true)) {
+            byte[] buffer = new byte[8192];
+            for (String name : new TreeSet<>(names)) {
+                File classMapping = new File(mappingsDirectory, name + ".txt");
+                if (!classMapping.isFile()) continue;
+
+                try (InputStream inputStream = new FileInputStream(classMapping)) {
+                    int read;
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        outputStream.write(buffer, 0, read);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void runInParallel(List<String> names, ClassTask task) throws IOException {
+        if (names.isEmpty()) return;
+
+        int threads = Math.min(names.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Void>> callables = new ArrayList<>();
+            for (String name : names) {
+                callables.add(() -> {
+                    task.run(name);
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(callables)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running StringFog", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("StringFog failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private State readState() {
+        if (!stateFile.isFile()) return null;
+
+        try {
+            State state = new Gson().fromJson(FileUtil.readFile(stateFile.getAbsolutePath()), State.class);
+            if (state != null && state.classes != null) {
+                return state;
+            }
+        } catch (JsonParseException e) {
+            LogUtil.w(TAG, "Corrupt state, fogging all classes", e);
+        }
+        return null;
+    }
+
+    private void writeState(State state) {
+        FileUtil.writeFile(stateFile.getAbsolutePath(), new Gson().toJson(state));
+    }
+
+    private interface ClassTask {
+        void run(String name) throws IOException;
+    }
+
+    private static class State {
+        private String version;
+        /**
+         * Hashes of the unfogged .class files that have been fogged, by class name
+         */
+        private Map<String, String> classes = new HashMap<>();
+    }
+}
@@ -7,6 +7,7 @@ import com.android.tools.r8.R8
 import com.android.tools.r8.R8Command
 import com.android.tools.r8.origin.Origin
 import java.nio.file.Files
+import java.nio.file.Path
 import java.nio.file.Paths
 
 class R8Compiler(
@@ -22,7 +23,7 @@ class R8Compiler(
         val output = Paths.get(yq.binDirectoryPath, "dex")
         Files.createDirectories(output)
         val command = R8Command.builder()
-            .addProgramFiles(inputs.map { Paths.get(it) })
+            .addProgramFiles(inputs.flatMap { programFiles(Paths.get(it)) })
             .addProguardConfiguration(rules, Origin.unknown())
             .addProguardConfigurationFiles(configs.map { Paths.get(it) })
             .setProguardMapOutputPath(Paths.get(yq.proguardMappingPath))
@@ -34,4 +35,19 @@ class R8Compiler(
 
         R8.run(command)
     }
+
+    /**
+     * Directories of compiled classes get passed as their .class files, so that they don't need to
+     * be packed into a JAR first, just for R8 to read them back out.
+     */
+    private fun programFiles(input: Path): List<Path> {
+        if (!Files.isDirectory(input)) return listOf(input)
+
+        return Files.walk(input).use { paths ->
+            paths.iterator().asSequence()
+                .filter { it.toString().endsWith(".class") && Files.isRegularFile(it) }
+                .sorted()
+                .toList()
+        }
+    }
 }
@@ -0,0 +1,77 @@
+package mod.pranav.dependency.resolver
+
+import mod.jbk.util.LogUtil
+import org.cosmic.ide.dependency.resolver.api.Artifact
+import pro.sketchware.utility.FileUtil
+import java.io.File
+import java.io.IOException
+import java.util.UUID
+
+/**
+ * Keeps downloaded libraries after they've been unzipped and dexed, shared by all projects, so that
+ * each version of a library only gets downloaded and dexed once.
+ *
+ * Entries are keyed by a library's coordinates and the SHA-256 checksum of its downloaded archive.
+ * Released versions never change, so once one is cached it's reused without downloading it again.
+ * Snapshots are always downloaded, but only unzipped and dexed again if their checksum changed.
+ */
+class ArtifactCache(private val directory: File) {
+    companion object {
+        private const val TAG = "ArtifactCache"
+        private const val LATEST_CHECKSUM_FILE = "latest"
+    }
+
+    /**
+     * @return The cached entry of [artifact]'s released version, or null if it has to be downloaded
+     */
+    fun find(artifact: Artifact): File? {
+        if (artifact.version.endsWith("-SNAPSHOT")) return null
+
+        val latestChecksum = File(versionDirectory(artifact), LATEST_CHECKSUM_FILE)
+        if (!latestChecksum.isFile) return null
+        return find(artifact, FileUtil.readFile(latestChecksum.absolutePath).trim())
+    }
+
+    /**
+     * @return The cached entry of [artifact] whose downloaded archive had [checksum], if any
+     */
+    fun find(artifact: Artifact, checksum: String): File? {
+        if (checksum.isEmpty()) return null
+        return File(versionDirectory(artifact), checksum).takeIf { it.isDirectory }
+    }
+
+    /**
+     * Replaces [libraryDirectory] with a copy of a cached entry.
+     */
+    fun restore(entry: File, libraryDirectory: File) {
+        FileUtil.deleteFile(libraryDirectory.absolutePath)
+        FileUtil.copyDirectory(entry, libraryDirectory)
+    }
+
+    /**
+     * Caches [libraryDirectory], the unzipped and dexed download of [artifact] whose archive had
+     * [checksum]. Failing to do so only gets logged.
+     */
+    fun store(artifact: Artifact, checksum: String, libraryDirectory: File) {
+        val versionDirectory = versionDirectory(artifact)
+        val entry = File(versionDirectory, checksum)
+        // Copied under a unique name first, so that no partially copied entry is ever found
+        val temporaryEntry = File(versionDirectory, "$checksum.${UUID.randomUUID()}.tmp")
+        try {
+            if (!entry.isDirectory) {
+                FileUtil.copyDirectory(libraryDirectory, temporaryEntry)
+                if (!temporaryEntry.renameTo(entry) && !entry.isDirectory) {
+                    throw IOException("Couldn't move $temporaryEntry to $entry")
+                }
+            }
+            FileUtil.writeFile(File(versionDirectory, LATEST_CHECKSUM_FILE).absolutePath, checksum)
+        } catch (e: IOException) {
+            LogUtil.w(TAG, "Failed to cache $artifact", e)
+        } finally {
+            FileUtil.deleteFile(temporaryEntry.absolutePath)
+        }
+    }
+
+    private fun versionDirectory(artifact: Artifact) =
+        File(directory, "${artifact.groupId}/${artifact.artifactId}/${artifact.version}")
+}
@@ -21,23 +21,53 @@ import org.cosmic.ide.dependency.resolver.eventReciever
 import org.cosmic.ide.dependency.resolver.getArtifact
 import org.cosmic.ide.dependency.resolver.repositories
 import pro.sketchware.utility.FileUtil
+import pro.sketchware.utility.HashUtil
+import java.io.File
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.Paths
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.regex.Pattern
 import java.util.zip.ZipFile
 import javax.xml.parsers.DocumentBuilderFactory
 import kotlin.io.path.readText
 import kotlin.io.path.writeText
 
-class DependencyResolver(
+/**
+ * Downloads a library and its dependencies to Local libraries and dexes them.
+ *
+ * Libraries are downloaded on a pool of threads, and each one gets dexed as soon as it's been
+ * downloaded, while the others are still downloading. Unzipped and dexed libraries are kept in an
+ * [ArtifactCache] shared by all projects, so a library that's been downloaded before is only copied.
+ *
+ * @param downloadPath Directory to put Local libraries in
+ * @param artifactCache Cache of previously downloaded libraries
+ */
+class DependencyResolver @JvmOverloads constructor(
     private val groupId: String,
     private val artifactId: String,
     private val version: String,
     private val skipDependencies: Boolean,
-    private val buildSettings: BuildSettings
+    private val buildSettings: BuildSettings,
+    private val downloadPath: String = FileUtil.getExternalStorageDir() + "/.sketchware/libs/local_libs",
+    private val artifactCache: ArtifactCache = ArtifactCache(File(FileUtil.getExternalStorageDir(), ".sketchware/libs/cache"))
 ) {
     companion object {
+        /**
+         * Downloads mostly wait on the network, so more of them run at once than there are cores
+         */
+        private const val FETCH_THREADS = 4
+
+        /**
+         * D8 already dexes one library on multiple threads, more concurrent runs mainly cost memory
+         */
+        private const val DEX_THREADS = 2
+
         private val DEFAULT_REPOS = """
           |[
           |    {"url": "https://repo.hortonworks.com/content/repositories/releases", "name": "HortanWorks"},
@@ -51,9 +81,6 @@ class DependencyResolver(
         """.trimMargin()
     }
 
-    private val downloadPath: String =
-        FileUtil.getExternalStorageDir() + "/.sketchware/libs/local_libs"
-
     private val repositoriesJson = Paths.get(
         Environment.getExternalStorageDirectory().absolutePath,
         ".sketchware",
@@ -148,78 +175,159 @@ class DependencyResolver(
             dependencyClasspath.add(Paths.get(it))
         }
 
-        latestDeps.forEach { artifact ->
-            callback.onResolving(artifact, dependency)
-            if (artifact.version.startsWith("[")) {
-                artifact.version = artifact.version.substring(1, artifact.version.length - 1)
-            }
-            val factory = DocumentBuilderFactory.newInstance()
-            val builder = factory.newDocumentBuilder()
-            val doc = builder.parse(artifact.getPOM())
-            val packaging = doc.getElementsByTagName("packaging").item(0)
-            if (packaging != null) artifact.extension = packaging.textContent
-            val ext = artifact.extension
-            if (ext != "jar" && ext != "aar") {
-                callback.invalidPackaging(artifact)
-                return@forEach
-            }
-            val path = Paths.get(
-                downloadPath,
-                "${artifact.artifactId}-v${artifact.version}",
-                "classes.${artifact.extension}"
-            )
-            if (Files.exists(path)) {
-                callback.onSkippingResolution(artifact)
+        val dexingFailed = AtomicBoolean(false)
+        val notFound = ConcurrentHashMap.newKeySet<Artifact>()
+        val fetchExecutor = Executors.newFixedThreadPool(maxOf(1, minOf(latestDeps.size, FETCH_THREADS)))
+        // Dx keeps its state in static fields, so only D8 can dex several libraries at once
+        val dexExecutor = Executors.newFixedThreadPool(
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) DEX_THREADS else 1
+        )
+        try {
+            val fetches = ExecutorCompletionService<FetchedArtifact?>(fetchExecutor)
+            latestDeps.forEach { artifact ->
+                fetches.submit { if (dexingFailed.get()) null else fetch(artifact, dependency, callback, notFound) }
             }
-            Files.createDirectories(path.parent)
-            callback.onDownloadStart(artifact)
-            try {
-                artifact.downloadTo(path.toFile())
-                if (path.toFile().exists().not()) {
-                    latestDeps.remove(artifact)
-                    callback.onDependenciesNotFound(artifact)
-                    return@forEach
+
+            // Libraries get dexed in the order they finish downloading, while the others are still downloading
+            val dexTasks = mutableListOf<Future<*>>()
+            repeat(latestDeps.size) {
+                val fetched = try {
+                    fetches.take().get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
                 }
-                dependencyClasspath.add(
-                    if (ext == "jar") path else Paths.get(
-                        downloadPath, "${artifact.artifactId}-v${artifact.version}", "classes.jar"
-                    )
-                )
-            } catch (e: Exception) {
-                callback.onDownloadError(artifact, e)
+                if (dexingFailed.get()) return
+                if (fetched == null) return@repeat
+
+                val classpath = dependencyClasspath.toList()
+                dependencyClasspath.add(fetched.jar)
+                if (fetched.checksum == null) {
+                    callback.onResolutionComplete(fetched.artifact)
+                    return@repeat
+                }
+                dexTasks.add(dexExecutor.submit {
+                    if (dexingFailed.get()) return@submit
+                    dex(fetched, classpath, libraryJars, callback, dexingFailed)
+                })
             }
+            dexTasks.forEach { it.get() }
+            if (dexingFailed.get()) return
+        } finally {
+            fetchExecutor.shutdownNow()
+            dexExecutor.shutdownNow()
+        }
+        callback.onTaskCompleted(latestDeps.filter { it !in notFound }.map { "${it.artifactId}-v${it.version}" })
+    }
+
+    /**
+     * Downloads and unzips [artifact] into its Local library directory, or copies it there from
+     * the artifact cache.
+     *
+     * @return The downloaded library, or null if there's nothing to dex
+     */
+    private fun fetch(
+        artifact: Artifact,
+        dependency: Artifact,
+        callback: DependencyResolverCallback,
+        notFound: MutableSet<Artifact>
+    ): FetchedArtifact? {
+        callback.onResolving(artifact, dependency)
+        if (artifact.version.startsWith("[")) {
+            artifact.version = artifact.version.substring(1, artifact.version.length - 1)
+        }
+        val libraryDirectory = Paths.get(downloadPath, "${artifact.artifactId}-v${artifact.version}")
+        val jar = libraryDirectory.resolve("classes.jar")
+
+        val cached = artifactCache.find(artifact)
+        if (cached != null) {
+            callback.onSkippingResolution(artifact)
+            artifactCache.restore(cached, libraryDirectory.toFile())
+            return if (Files.exists(jar)) FetchedArtifact(artifact, jar, null) else null
+        }
+
+        val factory = DocumentBuilderFactory.newInstance()
+        val builder = factory.newDocumentBuilder()
+        val doc = builder.parse(artifact.getPOM())
+        val packaging = doc.getElementsByTagName("packaging").item(0)
+        if (packaging != null) artifact.extension = packaging.textContent
+        val ext = artifact.extension
+        if (ext != "jar" && ext != "aar") {
+            callback.invalidPackaging(artifact)
+            return null
+        }
+        val path = libraryDirectory.resolve("classes.$ext")
+        if (Files.exists(path)) {
+            callback.onSkippingResolution(artifact)
+        }
+        Files.createDirectories(path.parent)
+        callback.onDownloadStart(artifact)
+        try {
+            artifact.downloadTo(path.toFile())
             if (path.toFile().exists().not()) {
-                callback.onDownloadError(artifact, Exception("Download failed"))
-                return@forEach
+                notFound.add(artifact)
+                callback.onDependenciesNotFound(artifact)
+                return null
             }
-            if (ext == "aar") {
-                callback.unzipping(artifact)
-                unzip(path)
-                Files.delete(path)
-                val packageName =
-                    findPackageName(path.parent.toAbsolutePath().toString(), artifact.groupId)
-                path.parent.resolve("config").writeText(packageName)
-            }
-            val jar = if (ext == "jar") path else Paths.get(
-                downloadPath, "${artifact.artifactId}-v${artifact.version}", "classes.jar"
-            )
-            if (Files.notExists(jar)) {
-                return@forEach
-            }
-            callback.dexing(artifact)
-            try {
-                compileJar(
-                    jar, dependencyClasspath.toMutableList().apply { remove(jar) }, libraryJars
-                )
-                callback.onResolutionComplete(artifact)
-            } catch (e: Exception) {
+        } catch (e: Exception) {
+            callback.onDownloadError(artifact, e)
+        }
+        if (path.toFile().exists().not()) {
+            callback.onDownloadError(artifact, Exception("Download failed"))
+            return null
+        }
+
+        val checksum = HashUtil.hashFile(path.toFile())
+        val entry = artifactCache.find(artifact, checksum)
+        if (entry != null) {
+            artifactCache.restore(entry, libraryDirectory.toFile())
+            return if (Files.exists(jar)) FetchedArtifact(artifact, jar, null) else null
+        }
+        if (ext == "aar") {
+            callback.unzipping(artifact)
+            unzip(path)
+            Files.delete(path)
+            val packageName =
+                findPackageName(path.parent.toAbsolutePath().toString(), artifact.groupId)
+            path.parent.resolve("config").writeText(packageName)
+        }
+        if (Files.notExists(jar)) {
+            artifactCache.store(artifact, checksum, libraryDirectory.toFile())
+            return null
+        }
+        return FetchedArtifact(artifact, jar, checksum)
+    }
+
+    /**
+     * Dexes a downloaded library and caches the result. Only the first library that fails to dex
+     * gets reported.
+     */
+    private fun dex(
+        fetched: FetchedArtifact,
+        classpath: List<Path>,
+        libraryJars: List<Path>,
+        callback: DependencyResolverCallback,
+        dexingFailed: AtomicBoolean
+    ) {
+        val artifact = fetched.artifact
+        callback.dexing(artifact)
+        try {
+            compileJar(fetched.jar, classpath, libraryJars)
+        } catch (e: Exception) {
+            if (dexingFailed.compareAndSet(false, true)) {
                 callback.dexingFailed(artifact, e)
-                return@resolveDependency
             }
+            return
         }
-        callback.onTaskCompleted(latestDeps.map { "${it.artifactId}-v${it.version}" })
+        artifactCache.store(artifact, fetched.checksum!!, fetched.jar.parent.toFile())
+        callback.onResolutionComplete(artifact)
     }
 
+    /**
+     * @param checksum Checksum of the downloaded archive, or null if the library has been copied
+     * from the artifact cache already dexed
+     */
+    private class FetchedArtifact(val artifact: Artifact, val jar: Path, val checksum: String?)
+
     private fun findPackageName(path: String, defaultValue: String): String {
         val files = ArrayList<String>()
         FileUtil.listDir(path, files)
@@ -0,0 +1,77 @@
+package pro.sketchware.utility;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.Collectors;
+
+/**
+ * Content hashing helpers used by the build caches to decide whether an input has really changed,
+ * independent of file timestamps.
+ */
+public class HashUtil {
+
+    private static final String ALGORITHM = "SHA-256";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " isn't available", e);
+        }
+    }
+
+    public static String hashString(String content) {
+        MessageDigest digest = newDigest();
+        digest.update(content.getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    public static String hashFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, file);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hashes all files below {@code directory}, including their paths relative to it,
+     * so that renaming or moving a file changes the hash as well.
+     *
+     * @return The hash, or the hash of no content if {@code directory} doesn't exist
+     */
+    public static String hashDirectory(File directory) throws IOException {
+        MessageDigest digest = newDigest();
+        String rootPath = directory.getAbsolutePath();
+        for (File file : FileUtil.listFilesRecursively(directory, "").stream()
+                .sorted()
+                .collect(Collectors.toList())) {
+            digest.update(file.getAbsolutePath().substring(rootPath.length()).getBytes(StandardCharsets.UTF_8));
+            update(digest, file);
+        }
+        return toHex(digest.digest());
+    }
+
+    public static void update(MessageDigest digest, File file) throws IOException {
+        try (InputStream inputStream = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -15,7 +15,14 @@ public class KotlinCompilerBridge {
     public static void maybeAddKotlinFilesToClasspath(StringBuilder classpath, yq workspace) {
     }
 
+    public static String getKotlinClassesFingerprint(ProjectBuilder builder) {
+        return "";
+    }
+
     public static String getKotlinHome(yq workspace) {
         return null;
     }
+
+    public static void releaseWarmCompiler() {
+    }
 }
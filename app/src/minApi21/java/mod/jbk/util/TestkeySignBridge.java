@@ -16,6 +16,8 @@ public class TestkeySignBridge {
         ZipSigner zipSigner = new ZipSigner();
         KeyStoreFileManager.setProvider(new BouncyCastleProvider());
         zipSigner.setKeymode(ZipSigner.KEY_TESTKEY);
+        zipSigner.setV2SigningEnabled(true);
+        zipSigner.setV3SigningEnabled(true);
         zipSigner.signZip(inputPath, outputPath);
     }
 }
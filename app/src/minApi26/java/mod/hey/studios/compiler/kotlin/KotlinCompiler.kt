@@ -1,13 +1,21 @@
 package mod.hey.studios.compiler.kotlin
 
 import a.a.a.ProjectBuilder
+import a.a.a.yq
 import mod.hey.studios.build.BuildSettings
 import mod.hey.studios.compiler.kotlin.KotlinCompilerUtil.*
+import mod.jbk.build.compiler.java.IncrementalJavaCompilation.fingerprintClasspath
 import mod.jbk.util.LogUtil
+import org.jetbrains.kotlin.cli.common.ExitCode
 import org.jetbrains.kotlin.cli.common.arguments.K2JVMCompilerArguments
 import org.jetbrains.kotlin.cli.jvm.K2JVMCompiler
+import org.jetbrains.kotlin.cli.jvm.compiler.KotlinCoreEnvironment
 import org.jetbrains.kotlin.config.Services
+import pro.sketchware.BuildConfig
+import pro.sketchware.utility.FileUtil
+import pro.sketchware.utility.HashUtil
 import java.io.File
+import java.util.concurrent.locks.ReentrantLock
 
 /**
  * Partly adapted from:
@@ -21,7 +29,8 @@ class KotlinCompiler(
     private val workspace = builder.yq
 
     /**
-     * Invokes `kotlinc`.
+     * Invokes `kotlinc`, unless no source file, classpath entry or plugin changed since the last
+     * successful compilation with incremental builds enabled. Then the previous output gets reused.
      */
     @Throws(Throwable::class)
     fun compile() {
@@ -38,10 +47,36 @@ class KotlinCompiler(
         // Output in the same place as ecj, makes everything easier
         val mClassOutput = File(workspace.compiledClassesPath).apply { mkdirs() }
 
+        val classpath = builder.getClasspath()
+        val plugins = getCompilerPlugins(workspace).map(File::getAbsolutePath).toTypedArray()
+
+        // Unlike bin/, the build cache survives between builds
+        val cacheDirectory = if (builder.isIncrementalBuildEnabled) File(workspace.buildCachePath, CACHE_DIRECTORY_NAME) else null
+        val classesDirectory = cacheDirectory?.let { File(it, "classes") } ?: mClassOutput
+        val fingerprintFile = cacheDirectory?.let { File(it, FINGERPRINT_FILE_NAME) }
+        val fingerprint = cacheDirectory?.let { fingerprintInputs(filesToCompile, classpath, plugins) }
+
+        if (fingerprintFile != null && fingerprintFile.isFile && classesDirectory.isDirectory
+            && fingerprintFile.readText() == fingerprint
+        ) {
+            FileUtil.copyDirectory(classesDirectory, mClassOutput)
+            LogUtil.d(
+                TAG,
+                "All Kotlin classes are up-to-date, reusing them took ${System.currentTimeMillis() - timeMillis} ms"
+            )
+            return
+        }
+        if (cacheDirectory != null) {
+            fingerprintFile!!.delete()
+            // kotlinc compiles all files anyway, so classes of deleted files mustn't stay around
+            classesDirectory.deleteRecursively()
+            classesDirectory.mkdirs()
+        }
+
         val arguments = mutableListOf<String>().apply {
             // Classpath
             add("-cp")
-            add(builder.getClasspath())
+            add(classpath)
 
             // Sources (.java & .kt)
             addAll(filesToCompile.map { it.absolutePath })
@@ -49,7 +84,6 @@ class KotlinCompiler(
 
         val compiler = K2JVMCompiler()
         val collector = DiagnosticCollector()
-        val plugins = getCompilerPlugins(workspace).map(File::getAbsolutePath).toTypedArray()
 
         val args = K2JVMCompilerArguments().apply {
             compileJava = false
@@ -59,26 +93,32 @@ class KotlinCompiler(
             noStdlib = true
 
             kotlinHome = mKotlinHome.absolutePath
-            destination = mClassOutput.absolutePath
+            destination = classesDirectory.absolutePath
             pluginClasspaths = plugins
         }
 
         LogUtil.d(TAG, "Running kotlinc with these arguments: $arguments")
 
-        compiler.parseArguments(arguments.toTypedArray(), args)
-        compiler.exec(collector, Services.EMPTY, args)
+        val exitCode = runInWarmSession(fingerprintClasspath(classpath + ":" + plugins.joinToString(":"))) {
+            compiler.parseArguments(arguments.toTypedArray(), args)
+            compiler.exec(collector, Services.EMPTY, args)
+        }
 
         // Log all diagnostics
         LogUtil.d(TAG, "kotlinc MessageCollector: $collector")
 
         // kotlinc generates some .kotlin_module files that make D8 fail,
         // delete them for now (?) TODO
-        File(mClassOutput, "META-INF").deleteRecursively()
+        File(classesDirectory, "META-INF").deleteRecursively()
 
-        if (collector.hasErrors()) {
+        if (collector.hasErrors() || exitCode == ExitCode.INTERNAL_ERROR) {
             LogUtil.e(TAG, "Failed to compile Kotlin files")
             throw Exception(collector.getDiagnostics(areWarningsEnabled()))
         } else {
+            if (cacheDirectory != null) {
+                FileUtil.copyDirectory(classesDirectory, mClassOutput)
+                fingerprintFile!!.writeText(fingerprint!!)
+            }
             LogUtil.d(
                 TAG,
                 "Compiling Kotlin files took ${System.currentTimeMillis() - timeMillis} ms"
@@ -86,6 +126,20 @@ class KotlinCompiler(
         }
     }
 
+    /**
+     * Hashes everything kotlinc's output depends on: source files' paths and contents, and the
+     * classpath's and plugins' paths, sizes and modification times.
+     */
+    private fun fingerprintInputs(files: List<File>, classpath: String, plugins: Array<String>): String {
+        val fingerprint = StringBuilder(BuildConfig.GIT_HASH).append('\n')
+            .append(fingerprintClasspath(classpath))
+            .append(fingerprintClasspath(plugins.joinToString(":")))
+        for (file in files.sortedBy { it.absolutePath }) {
+            fingerprint.append(file.absolutePath).append('|').append(HashUtil.hashFile(file)).append('\n')
+        }
+        return HashUtil.hashString(fingerprint.toString())
+    }
+
     private fun areWarningsEnabled(): Boolean {
         return builder.build_settings.getValue(
             BuildSettings.SETTING_NO_WARNINGS,
@@ -95,5 +149,92 @@ class KotlinCompiler(
 
     companion object {
         const val TAG = "KotlinCompiler"
+        private const val CACHE_DIRECTORY_NAME = "kotlinc"
+        private const val FINGERPRINT_FILE_NAME = "fingerprint"
+
+        /**
+         * Returns the fingerprint of the inputs the Kotlin classes currently in the build cache were
+         * compiled from, or `null` if there are none. Since kotlinc's output only depends on those
+         * inputs, this changes whenever the Kotlin classes do.
+         */
+        @JvmStatic
+        fun getOutputFingerprint(workspace: yq): String? {
+            val fingerprintFile = File(File(workspace.buildCachePath, CACHE_DIRECTORY_NAME), FINGERPRINT_FILE_NAME)
+            return if (fingerprintFile.isFile) fingerprintFile.readText() else null
+        }
+
+        /**
+         * Makes kotlinc keep its application environment, which includes the indexes of classpath JARs,
+         * alive after compiling, so that following compilations in this process start warm.
+         */
+        private const val KEEPALIVE_PROPERTY = "kotlin.environment.keepalive"
+
+        private val sessionLock = ReentrantLock()
+        private var sessionClasspathFingerprint: String? = null
+
+        @Volatile
+        private var releaseRequested = false
+
+        /**
+         * Runs a compilation in the warm session, one compilation at a time. The session gets discarded
+         * first if any classpath entry changed since the last compilation, as its JAR indexes would be outdated.
+         */
+        private fun runInWarmSession(classpathFingerprint: String, compilation: () -> ExitCode): ExitCode {
+            sessionLock.lock()
+            try {
+                System.setProperty(KEEPALIVE_PROPERTY, "true")
+                if (sessionClasspathFingerprint != null && sessionClasspathFingerprint != classpathFingerprint) {
+                    LogUtil.d(TAG, "Classpath changed, discarding warm kotlinc session")
+                    disposeSession()
+                }
+                sessionClasspathFingerprint = classpathFingerprint
+
+                val startedWarm = KotlinCoreEnvironment.applicationEnvironment != null
+                try {
+                    return compilation().also {
+                        LogUtil.d(TAG, if (startedWarm) "Compiled in warm kotlinc session" else "Started kotlinc session")
+                        // kotlinc reports most crashes through its exit code rather than by throwing
+                        if (it == ExitCode.INTERNAL_ERROR) {
+                            LogUtil.d(TAG, "kotlinc ran into an internal error, discarding warm session")
+                            disposeSession()
+                        }
+                    }
+                } catch (e: Throwable) {
+                    // The environment might be in an inconsistent state
+                    disposeSession()
+                    throw e
+                }
+            } finally {
+                if (releaseRequested) {
+                    disposeSession()
+                }
+                sessionLock.unlock()
+            }
+        }
+
+        /**
+         * Discards the warm session to free its memory, e.g. when leaving the editor. If a compilation is
+         * running, that happens once it's done.
+         */
+        @JvmStatic
+        fun releaseWarmSession() {
+            if (sessionLock.tryLock()) {
+                try {
+                    disposeSession()
+                } finally {
+                    sessionLock.unlock()
+                }
+            } else {
+                releaseRequested = true
+            }
+        }
+
+        private fun disposeSession() {
+            releaseRequested = false
+            sessionClasspathFingerprint = null
+            if (KotlinCoreEnvironment.applicationEnvironment != null) {
+                KotlinCoreEnvironment.disposeApplicationEnvironment()
+            }
+        }
     }
 }
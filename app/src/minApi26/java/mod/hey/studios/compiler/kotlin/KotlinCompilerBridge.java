@@ -30,7 +30,26 @@ public class KotlinCompilerBridge {
         }
     }
 
+    /**
+     * Returns a fingerprint of the compiled Kotlin classes Java code gets compiled against,
+     * or an empty string if the project has no Kotlin files.
+     */
+    public static String getKotlinClassesFingerprint(ProjectBuilder builder) {
+        if (!KotlinCompilerUtil.areAnyKtFilesPresent(builder)) {
+            return "";
+        }
+        String fingerprint = KotlinCompiler.getOutputFingerprint(builder.yq);
+        return fingerprint != null ? fingerprint : "";
+    }
+
     public static String getKotlinHome(yq workspace) {
         return workspace.binDirectoryPath + File.separator + "kotlin_home";
     }
+
+    /**
+     * Frees the memory kotlinc keeps for compiling faster next time.
+     */
+    public static void releaseWarmCompiler() {
+        KotlinCompiler.releaseWarmSession();
+    }
 }